@@ -32,14 +32,57 @@ class Column {
         return _name;
     }
 
+    /** Return the table containing my column. */
+    Table getTable() {
+        return _table;
+    }
+
+    /** Return the number of my column in getTable(). */
+    int getColumnNumber() {
+        return _column;
+    }
+
+    /** Return the index of my table among the tables from which I was
+     *  selected (0 for the first). */
+    int getTableIndex() {
+        return _tableIndex;
+    }
+
+    /** Return the values of my column. */
+    Table.ValueList getValues() {
+        return _table.values(_column);
+    }
+
+    /** Assuming that ROW1 and ROW2 are the indices of rows from my
+     *  first and second tables, return the index of the row from which
+     *  I extract a value (see getFrom).  When I select from a single
+     *  table, ROW2 is ignored. */
+    int getRow(int row1, int row2) {
+        return _tableIndex == 0 ? row1 : row2;
+    }
+
     /** Assuming that for each k, ROWS[k] is the index of a row from my
      *  kth table, return the value of my column from the appropriate
      *  row.  It is assumed that all columns with the same name have
-     *  the same value. */
+     *  the same value.  The overloads taking one or two row indices
+     *  below do the same for one or two tables without creating an
+     *  array. */
     String getFrom(Integer... rows) {
         return _table.get(rows[_tableIndex], _column);
     }
 
+    /** Return the value of my column from row ROW of my (single)
+     *  table. */
+    String getFrom(int row) {
+        return _table.get(row, _column);
+    }
+
+    /** Return the value of my column from the appropriate one of ROW1
+     *  from my first table and ROW2 from my second. */
+    String getFrom(int row1, int row2) {
+        return _table.get(getRow(row1, row2), _column);
+    }
+
     /** Column name denoted by THIS. */
     private String _name;
     /** Table containing this column. */
@@ -8,7 +8,11 @@
 // solutions.
 package db61b;
 
+import java.io.BufferedOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 
 import java.util.ArrayList;
 import java.util.Scanner;
@@ -123,8 +127,25 @@ class CommandInterpreter {
     /** A new CommandInterpreter executing commands read from INP, writing
      *  prompts on PROMPTER, if it is non-null. */
     CommandInterpreter(Scanner inp, PrintStream prompter) {
+        this(inp, prompter, new Database());
+    }
+
+    /** A new CommandInterpreter executing commands read from INP on the
+     *  tables in DATABASE, writing prompts on PROMPTER, if it is
+     *  non-null, and results on the standard output. */
+    CommandInterpreter(Scanner inp, PrintStream prompter,
+                       Database database) {
+        this(inp, prompter, database, System.out);
+    }
+
+    /** A new CommandInterpreter executing commands read from INP on the
+     *  tables in DATABASE, writing prompts on PROMPTER, if it is
+     *  non-null, and results on OUTPUT. */
+    CommandInterpreter(Scanner inp, PrintStream prompter,
+                       Database database, PrintStream output) {
         _input = new Tokenizer(inp, prompter);
-        _database = new Database();
+        _database = database;
+        _output = output;
     }
 
     /** Parse and execute one statement from the token stream.  Return true
@@ -163,6 +184,14 @@ class CommandInterpreter {
     /** Parse and execute a create statement from the token stream. */
     void createStatement() {
         _input.next("create");
+        if (_input.nextIs("index")) {
+            indexDefinition();
+            return;
+        }
+        if (_input.nextIs("view")) {
+            viewDefinition();
+            return;
+        }
         _input.next("table");
         String name = name();
         Table table = tableDefinition();
@@ -180,31 +209,66 @@ class CommandInterpreter {
         _input.next(";");
     }
 
-    /** Parse and execute an insert statement from the token stream. */
+    /** Parse and execute an insert statement from the token stream.
+     *  All the rows are parsed before the table is locked and any are
+     *  added, so that the table is not locked while the rest of the
+     *  statement is read.  Views of the table are brought up to date
+     *  afterwards (see Database.refreshViews), and the statement is
+     *  finished once the rows added are recorded in the database's log,
+     *  if any. */
     void insertStatement() {
         _input.next("insert");
         _input.next("into");
-        Table table = tableName();
+        String name = _input.peek();
+        if (_database.isView(name)) {
+            throw error("cannot insert into view %s", name);
+        }
+        int cols = tableName().columns();
         _input.next("values");
-        int cols = table.columns();
 
-        String[] values = new String[cols];
+        ArrayList<String[]> rows = new ArrayList<>();
 
         while (true) {
             int k;
+            String[] values = new String[cols];
             _input.next("(");
             // FILL THIS IN
             k = 0;
             while (k < cols) {
+                if (k > 0) {
+                    _input.next(",");
+                }
                 values[k] = literal();
+                k += 1;
             }
             _input.next(")");
-            table.add(values);
+            rows.add(values);
             if (!_input.nextIf(",")) {
                 break;
             }
         }
         _input.next(";");
+
+        ArrayList<String[]> added = new ArrayList<>();
+        long ticket;
+        Table table = tableForWriting(name);
+        try {
+            if (table.columns() != cols) {
+                throw error("table %s has changed", name);
+            }
+            for (String[] values : rows) {
+                if (table.add(values)) {
+                    added.add(values);
+                }
+            }
+            ticket = _database.logRows(name, added);
+        } finally {
+            table.writeUnlock();
+        }
+        if (!added.isEmpty()) {
+            _database.refreshViews(name);
+        }
+        _database.awaitLog(ticket);
     }
 
     /** Parse and execute a load statement from the token stream. */
@@ -212,40 +276,168 @@ class CommandInterpreter {
         // FILL THIS IN
         _input.next("load");
         String name = name();
-        Table table = Table.readTable(name);
-        _database.put(name, table);
-        System.out.printf("loaded %s.db%n", name);
+        _database.load(name);
+        _output.printf("loaded %s.db%n", name);
         _input.next(";");
     }
 
-    /** Parse and execute a store statement from the token stream. */
+    /** Parse and execute a store statement from the token stream.  The
+     *  table is written as text unless the table name is followed by
+     *  "binary". */
     void storeStatement() {
         _input.next("store");
         String name = _input.peek();
         Table table = tableName();
-        // FILL THIS IN
-        table.writeTable(name);
-        System.out.printf("Stored %s.db%n", name);
+        table.readLock();
+        try {
+            if (_input.nextIf("binary")) {
+                table.writeBinaryTable(name);
+            } else {
+                table.writeTable(name);
+            }
+        } finally {
+            table.readUnlock();
+        }
+        _output.printf("Stored %s.db%n", name);
         _input.next(";");
     }
 
-    /** Parse and execute a print statement from the token stream. */
-    /** Parse and execute a print statement from the token stream. */
+    /** Parse and execute a print statement from the token stream.  The
+     *  rows go to the file named in an optional "to" clause, if there is
+     *  one (see destination). */
     void printStatement() {
         // FILL THIS IN
         _input.next("print");
-        tableName().print();
+        Table table = tableName();
+        String file = destination();
+        table.readLock();
+        try {
+            if (file == null) {
+                table.print(_output);
+            } else {
+                PrintStream out = openFile(file);
+                try {
+                    RowPrinter printer = new RowPrinter(out);
+                    table.print(printer);
+                    finish(printer, out, file);
+                } finally {
+                    out.close();
+                }
+            }
+        } finally {
+            table.readUnlock();
+        }
         _input.next(";");
     }
 
-    /** Parse and execute a select statement from the token stream. */
+    /** Parse and execute a select statement from the token stream.  The
+     *  rows go to the file named in an optional "to" clause, if there is
+     *  one (see destination). */
     void selectStatement() {
-        Table table = selectClause();
-        System.out.println("Search results:");
-        table.print();
+        Query query = selectQuery();
+        String file = destination();
+        Table result = select(query);
+        PrintStream out = file == null ? _output : openFile(file);
+        try {
+            if (file == null) {
+                _output.println("Search results:");
+            }
+            RowPrinter printer = new RowPrinter(out);
+            result.print(printer);
+            finish(printer, out, file);
+        } finally {
+            if (file != null) {
+                out.close();
+            }
+        }
         _input.next(";");
     }
 
+    /** Parse an optional "to <literal>" clause from the token stream,
+     *  returning the name of the file it designates, or null if there is
+     *  no such clause. */
+    String destination() {
+        if (!_input.nextIf("to")) {
+            return null;
+        }
+        return literal();
+    }
+
+    /** Return a new buffered stream writing to the file named NAME,
+     *  which is created or emptied. */
+    private static PrintStream openFile(String name) {
+        try {
+            return new PrintStream(
+                new BufferedOutputStream(new FileOutputStream(name),
+                                         RowPrinter.CHUNK_SIZE),
+                false, StandardCharsets.UTF_8);
+        } catch (FileNotFoundException e) {
+            throw error("cannot write to %s", name);
+        }
+    }
+
+    /** Write out the rows printed on PRINTER, which prints on OUT.  If
+     *  OUT writes to the file named FILE (rather than to the standard
+     *  output, if FILE is null), check that it succeeded and report the
+     *  number of rows written. */
+    private void finish(RowPrinter printer, PrintStream out, String file) {
+        printer.flush();
+        if (file != null) {
+            if (out.checkError()) {
+                throw error("trouble writing to %s", file);
+            }
+            _output.printf("Wrote %d rows to %s%n", printer.rows(), file);
+        }
+    }
+
+    /** Parse and execute the remainder of a create view statement,
+     *  "view <name> as <select clause> ;".  The view's contents are
+     *  those of the select clause, which may not have a limit, and are
+     *  kept up to date as rows are inserted into the tables it selects
+     *  from (see View). */
+    void viewDefinition() {
+        _input.next("view");
+        String name = name();
+        _input.next("as");
+        Query query = selectQuery();
+        if (query.limited()) {
+            throw error("a view may not have a limit");
+        }
+        View view;
+        Table table;
+        query.lock();
+        try {
+            table = query.select();
+            view = new View(name, query);
+        } finally {
+            query.unlock();
+        }
+        _database.putView(view, table);
+        _database.refreshViews(name);
+        _input.next(";");
+    }
+
+    /** Parse and execute the remainder of a create index statement,
+     *  "index on <table name> ( <column name> ) ;". */
+    void indexDefinition() {
+        _input.next("index");
+        _input.next("on");
+        String name = name();
+        _input.next("(");
+        String column = columnName();
+        _input.next(")");
+        long ticket;
+        Table table = tableForWriting(name);
+        try {
+            table.createIndex(column);
+            ticket = _database.logIndex(name, column);
+        } finally {
+            table.writeUnlock();
+        }
+        _input.next(";");
+        _database.awaitLog(ticket);
+    }
+
     /** Parse and execute a table definition, returning the specified
      *  table. */
     Table tableDefinition() {
@@ -260,18 +452,56 @@ class CommandInterpreter {
         } else {
             // REPLACE WITH SOLUTION
             _input.next("as");
-            table = selectClause();
+            Query query = selectQuery();
+            query.lock();
+            try {
+                table = query.select();
+            } finally {
+                query.unlock();
+            }
         }
         return table;
     }
 
     /** Parse and execute a select clause from the token stream, returning the
-     *  resulting table. */
+     *  resulting table, which must not be modified (see select). */
     Table selectClause() {
+        return select(selectQuery());
+    }
+
+    /** Return the result of QUERY, which must not be modified.  The
+     *  result is shared through the database's cache (see
+     *  Database.cachedResult), so that a query repeated by any session,
+     *  while the tables it selects from are unchanged, returns the table
+     *  computed the first time. */
+    private Table select(Query query) {
+        String key = query.key();
+        long[] versions;
+        Table result;
+        query.lock();
+        try {
+            versions = query.versions();
+            result = _database.cachedResult(key, versions);
+            if (result != null) {
+                return result;
+            }
+            result = query.select();
+        } finally {
+            query.unlock();
+        }
+        _database.cacheResult(key, versions, result);
+        return result;
+    }
+
+    /** Parse a select clause from the token stream, returning the query
+     *  it denotes without executing it. */
+    Query selectQuery() {
         Table table1;
         Table table2;
+        Query query;
         ArrayList<String> columnNames = new ArrayList<>();
         ArrayList<Condition> conditions = new ArrayList<>();
+        ArrayList<String> tableNames = new ArrayList<>();
 
         _input.next("select");
         columnNames.add(columnName());
@@ -280,22 +510,35 @@ class CommandInterpreter {
             columnNames.add(currCol);
         }
         _input.next("from");
+        tableNames.add(_input.peek());
         table1 = tableName();
         //token past first table
         if (_input.nextIf(",")) {
             //two table select
+            tableNames.add(_input.peek());
             table2 = tableName();
             if (_input.nextIf("where")) {
                 conditions = conditionClause(table1, table2);
             }
-            return table1.select(table2, columnNames, conditions);
+            query = new Query(columnNames, tableNames,
+                              new Table[] { table1, table2 }, conditions);
         } else {
             //single table select
             if (_input.nextIf("where")) {
                 conditions = conditionClause(table1);
             }
-            return table1.select(columnNames, conditions);
+            query = new Query(columnNames, tableNames, new Table[] { table1 },
+                              conditions);
         }
+        if (_input.nextIf("limit")) {
+            int limit = number();
+            int offset = 0;
+            if (_input.nextIf("offset")) {
+                offset = number();
+            }
+            query.setLimit(limit, offset);
+        }
+        return query;
     }
 
     /** Parse and return a valid name (identifier) from the token stream. */
@@ -321,6 +564,26 @@ class CommandInterpreter {
         return table;
     }
 
+    /** Return the table named NAME, locked for writing (see
+     *  Database.getForWriting).  The caller must unlock it. */
+    Table tableForWriting(String name) {
+        Table table = _database.getForWriting(name);
+        if (table == null) {
+            throw error("unknown table: %s", name);
+        }
+        return table;
+    }
+
+    /** Parse and return a non-negative integer from the token stream. */
+    int number() {
+        String number = _input.next(Tokenizer.NUMBER);
+        try {
+            return Integer.parseInt(number);
+        } catch (NumberFormatException e) {
+            throw error("number too large: %s", number);
+        }
+    }
+
     /** Parse a literal and return the string it represents (i.e., without
      *  single quotes). */
     String literal() {
@@ -372,4 +635,7 @@ class CommandInterpreter {
     private Tokenizer _input;
     /** Database containing all tables. */
     private Database _database;
+    /** Where the results of commands are written. */
+    private PrintStream _output;
+
 }
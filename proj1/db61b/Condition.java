@@ -7,11 +7,19 @@
 // solutions.
 package db61b;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import static db61b.Utils.error;
 
 /** Represents a single 'where' condition in a 'select' command.
+ *  A Condition is compiled when it is constructed: the relation becomes
+ *  a bit mask telling which outcomes of a comparison satisfy it, and the
+ *  operands become an Operands object specialized to the kind of
+ *  comparison (column with literal, column with another column of the
+ *  same values, or with an unrelated column).  Testing a row is then a
+ *  single comparison and a mask lookup, with no dispatch on strings.
  *  @author */
 class Condition {
 
@@ -19,10 +27,16 @@ class Condition {
      *  are column designators. and RELATION is one of the
      *  strings "<", ">", "<=", ">=", "=", or "!=". */
     Condition(Column col1, String relation, Column col2) {
-        // YOUR CODE HERE
         _col1 = col1;
         _col2 = col2;
+        _val2 = null;
         _relation = relation;
+        _mask = relationMask(relation);
+        if (col1.getValues() == col2.getValues()) {
+            _operands = new SameColumnOperands(col1, col2);
+        } else {
+            _operands = new ColumnOperands(col1, col2);
+        }
     }
 
     /** A Condition representing COL1 RELATION 'VAL2', where COL1 is
@@ -31,46 +45,130 @@ class Condition {
      *  ">=", "=", or "!=".
      */
     Condition(Column col1, String relation, String val2) {
-        this(col1, relation, (Column) null);
+        _col1 = col1;
+        _col2 = null;
         _val2 = val2;
+        _relation = relation;
+        _mask = relationMask(relation);
+        _operands = new LiteralOperands(col1, val2);
     }
 
     /** Assuming that ROWS are row indices in the respective tables
      *  from which my columns are selected, returns the result of
      *  performing the test I denote. */
     boolean test(Integer... rows) {
-        // REPLACE WITH SOLUTION
-        //compareTo returns < 0 if THIS string is lexicographically less than the argument string
-        boolean condMet;
-        int compare;
-        if (_col2 == null) {
-            compare = _col1.getFrom(rows).compareTo(_val2);
+        if (rows.length == 1) {
+            return test(rows[0]);
+        }
+        return test(rows[0], rows[1]);
+    }
+
+    /** Return the result of performing the test I denote on row ROW of
+     *  the single table from which my columns are selected. */
+    boolean test(int row) {
+        return test(row, row);
+    }
+
+    /** Assuming that ROW1 and ROW2 are row indices in the first and
+     *  second tables from which my columns are selected, returns the
+     *  result of performing the test I denote. */
+    boolean test(int row1, int row2) {
+        int compare = _operands.compare(row1, row2);
+        return ((_mask >> (Integer.signum(compare) + 1)) & 1) != 0;
+    }
+
+    /** Do the work that testing rows would otherwise do lazily on
+     *  the first test, given the current state of the tables my columns
+     *  come from, so that many threads may then test rows at once
+     *  without all repeating it. */
+    void prepare() {
+        _operands.prepare();
+    }
+
+    /** Return my first operand. */
+    Column getColumn() {
+        return _col1;
+    }
+
+    /** Return my relation: one of "<", ">", "<=", ">=", "=", or "!=". */
+    String getRelation() {
+        return _relation;
+    }
+
+    /** Return my second operand if it is a literal, and otherwise
+     *  null. */
+    String getLiteral() {
+        return _val2;
+    }
+
+    /** Return the set of tables my operands come from, as a bit mask
+     *  in which bit k is set iff one of my columns is from the kth table
+     *  the condition applies to (see Column.getTableIndex). */
+    int getTables() {
+        int tables = 1 << _col1.getTableIndex();
+        if (_col2 != null) {
+            tables |= 1 << _col2.getTableIndex();
+        }
+        return tables;
+    }
+
+    /** Return a description of THIS in the form it would be written
+     *  in a where clause, such as "A < B" or "A = 'x'". */
+    @Override
+    public String toString() {
+        String operand2;
+        if (_val2 != null) {
+            operand2 = "'" + _val2 + "'";
         } else {
-            compare = _col1.getFrom(rows).compareTo(_col2.getFrom(rows));
-        }
-        switch(_relation) {
-            case "<":
-                condMet = compare < 0;
-                break;
-            case "=":
-                condMet = compare == 0;
-                break;
-            case ">":
-                condMet = compare > 0;
-                break;
-            case "!=":
-                condMet = compare != 0;
-                break;
-            case "<=":
-                condMet = (compare < 0) || (compare == 0);
-                break;
-            case ">=":
-                condMet = (compare > 0) || (compare == 0);
-                break;
-            default:
-                throw error("unrecognizable comparison symbol");
-        }
-        return condMet;
+            operand2 = _col2.getName();
+        }
+        return _col1.getName() + " " + _relation + " " + operand2;
+    }
+
+    /** Return an estimate of the fraction of rows (or pairs of rows)
+     *  that satisfy THIS.  For a comparison with a literal, the estimate
+     *  comes from the frequencies of the values in the column (see
+     *  Table.ValueList.fraction); for comparisons between columns, it is
+     *  a fixed guess based on the relation and the numbers of distinct
+     *  values. */
+    double selectivity() {
+        Table.ValueList values1 = _col1.getValues();
+        if (_val2 != null) {
+            return values1.fraction(_mask, _val2);
+        }
+        int distinct = Math.max(1, Math.max(values1.distinct(),
+                                            _col2.getValues().distinct()));
+        switch (_mask) {
+        case EQUAL:
+            return 1.0 / distinct;
+        case LESS | GREATER:
+            return 1.0 - 1.0 / distinct;
+        default:
+            return RANGE_SELECTIVITY;
+        }
+    }
+
+    /** Return a list of CONDITIONS in increasing order of their
+     *  selectivity, so that testing them in order rejects rows as early
+     *  as possible. */
+    static List<Condition> bySelectivity(List<Condition> conditions) {
+        int n = conditions.size();
+        if (n <= 1) {
+            return conditions;
+        }
+        Integer[] order = new Integer[n];
+        double[] estimates = new double[n];
+        for (int i = 0; i < n; i += 1) {
+            order[i] = i;
+            estimates[i] = conditions.get(i).selectivity();
+        }
+        Arrays.sort(order, (i, j) -> Double.compare(estimates[i],
+                                                    estimates[j]));
+        ArrayList<Condition> result = new ArrayList<>(n);
+        for (int i : order) {
+            result.add(conditions.get(i));
+        }
+        return result;
     }
 
     /** Return true iff ROWS satisfies all CONDITIONS. */
@@ -83,12 +181,171 @@ class Condition {
         return true;
     }
 
+    /** Return true iff rows ROW1 and ROW2 of the first and second tables
+     *  from which CONDITIONS select satisfy all CONDITIONS. */
+    static boolean test(List<Condition> conditions, int row1, int row2) {
+        for (int i = 0; i < conditions.size(); i += 1) {
+            if (!conditions.get(i).test(row1, row2)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Return the mask for RELATION: bit 0, 1, or 2 is set iff a
+     *  comparison result that is negative, zero, or positive
+     *  (respectively) satisfies RELATION. */
+    private static int relationMask(String relation) {
+        switch (relation) {
+        case "<":
+            return LESS;
+        case "=":
+            return EQUAL;
+        case ">":
+            return GREATER;
+        case "!=":
+            return LESS | GREATER;
+        case "<=":
+            return LESS | EQUAL;
+        case ">=":
+            return GREATER | EQUAL;
+        default:
+            throw error("unrecognizable comparison symbol");
+        }
+    }
+
+    /** The two operands of a Condition, specialized to how they are
+     *  compared. */
+    private abstract static class Operands {
+        /** Return <0, 0, or >0 depending on whether the first operand is
+         *  less than, equal to, or greater than the second, taking the
+         *  values of columns from row ROW1 of the first table and ROW2 of
+         *  the second (see Column.getRow). */
+        abstract int compare(int row1, int row2);
+
+        /** Do any work that compare would otherwise do lazily on its
+         *  first call. */
+        void prepare() {
+        }
+    }
+
+    /** A column compared with a literal.  Compares the rank of the
+     *  column's value with the literal's key (see Table.ValueList.keyOf),
+     *  which is computed once per ranking of the column's values.  The
+     *  key and the ranking it belongs to are kept in one immutable
+     *  LiteralKey, so that threads testing rows concurrently see either
+     *  a consistent key or none (and at worst compute it again). */
+    private static class LiteralOperands extends Operands {
+        /** Operands COL and the literal VALUE. */
+        LiteralOperands(Column col, String value) {
+            _col = col;
+            _values = col.getValues();
+            _value = value;
+        }
+
+        @Override
+        void prepare() {
+            key();
+        }
+
+        @Override
+        int compare(int row1, int row2) {
+            return _values.compareToKey(_col.getRow(row1, row2), _value,
+                                        key());
+        }
+
+        /** Return the key of _value for the current ranking of
+         *  _values. */
+        private int key() {
+            LiteralKey key = _key;
+            if (key == null || key._version != _values.rankVersion()) {
+                key = new LiteralKey(_values.keyOf(_value),
+                                     _values.rankVersion());
+                _key = key;
+            }
+            return key._key;
+        }
+
+        /** The column operand. */
+        private final Column _col;
+        /** The values of _col. */
+        private final Table.ValueList _values;
+        /** The literal operand. */
+        private final String _value;
+        /** The key of _value for some ranking of _values, or null. */
+        private LiteralKey _key;
+    }
+
+    /** The key of a literal (see Table.ValueList.keyOf). */
+    private static final class LiteralKey {
+        /** The key KEY, valid while rankVersion() is VERSION. */
+        LiteralKey(int key, int version) {
+            _key = key;
+            _version = version;
+        }
+
+        /** The key. */
+        private final int _key;
+        /** The ranking version for which _key is valid. */
+        private final int _version;
+    }
+
+    /** Two columns whose values come from the same ValueList (as in
+     *  comparing a column with itself), which are compared by rank. */
+    private static class SameColumnOperands extends Operands {
+        /** Operands COL1 and COL2, which must have the same values. */
+        SameColumnOperands(Column col1, Column col2) {
+            _col1 = col1;
+            _col2 = col2;
+            _values = col1.getValues();
+        }
+
+        @Override
+        int compare(int row1, int row2) {
+            return _values.compare(_col1.getRow(row1, row2),
+                                   _col2.getRow(row1, row2));
+        }
+
+        /** The operands. */
+        private final Column _col1, _col2;
+        /** The values of both operands. */
+        private final Table.ValueList _values;
+    }
+
+    /** Two columns with unrelated values, which are compared as
+     *  strings. */
+    private static class ColumnOperands extends Operands {
+        /** Operands COL1 and COL2. */
+        ColumnOperands(Column col1, Column col2) {
+            _col1 = col1;
+            _col2 = col2;
+        }
+
+        @Override
+        int compare(int row1, int row2) {
+            return _col1.getFrom(row1, row2).compareTo(_col2.getFrom(row1,
+                                                                     row2));
+        }
+
+        /** The operands. */
+        private final Column _col1, _col2;
+    }
+
+    /** Assumed selectivity of an inequality between two columns. */
+    private static final double RANGE_SELECTIVITY = 1.0 / 3;
+
+    /** Masks for the outcomes of a comparison (see relationMask). */
+    private static final int LESS = 1, EQUAL = 2, GREATER = 4;
+
     /** The operands of this condition.  _col2 is null if the second operand
      *  is a literal. */
-    private Column _col1, _col2;
+    private final Column _col1, _col2;
     /** Second operand, if literal (otherwise null). */
-    private String _val2;
-    // ADD ADDITIONAL FIELDS HERE
+    private final String _val2;
     /** Conditional of relation. */
-    private String _relation;
+    private final String _relation;
+    /** Which comparison outcomes satisfy _relation (see relationMask). */
+    private final int _mask;
+    /** My operands, compiled for comparison. */
+    private final Operands _operands;
 }
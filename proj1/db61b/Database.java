@@ -8,32 +8,516 @@
 package db61b;
 
 // FILL IN (WITH IMPORTS)?
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
 
-/** A collection of Tables, indexed by name.
+import static db61b.Utils.*;
+
+/** A collection of Tables, indexed by name.  A table may be registered
+ *  from a .db file without being read (see load), in which case its
+ *  rows are read from the file when the table is first retrieved.
+ *
+ *  The tables held in memory are limited by a memory budget (see
+ *  setMemoryBudget).  When their estimated size exceeds it, the least
+ *  recently used tables are spilled: written to temporary files in
+ *  binary form and dropped from memory.  Retrieving a spilled table
+ *  reads it back.
+ *
+ *  I also keep the results of recent select clauses, shared by all the
+ *  sessions using me (see cachedResult).  They count against the memory
+ *  budget too, and are discarded, least recently used first, before any
+ *  table is spilled.
+ *
+ *  A Database may be used by several threads at once.  Names are kept
+ *  in a concurrent map, and each entry is locked only while its table
+ *  is being read in or spilled.  Tables themselves are protected by
+ *  their own read/write locks (see Table.readLock): a table that is
+ *  locked is never spilled, and since a spilled table is replaced by a
+ *  new Table when read back, a thread that modifies a table should get
+ *  it with getForWriting, which checks that the table it locks is still
+ *  the one stored.
+ *
+ *  Some tables may be views, which are brought up to date whenever the
+ *  tables they select from change (see View and refreshViews).
+ *
+ *  If a WriteAheadLog is attached (see setLog), each change is recorded
+ *  in it, and the methods making changes return once it is durable.
  *  @author */
 class Database {
-    /** An empty database. */
+    /** An empty database with no memory budget. */
     public Database() {
-        // FILL IN
-        _allTables = new HashMap<>();
+        this(Long.MAX_VALUE);
+    }
+
+    /** An empty database that keeps at most about BUDGET bytes of tables
+     *  in memory.  BUDGET must not be negative. */
+    public Database(long budget) {
+        _tables = new ConcurrentHashMap<>();
+        _budget = checkBudget(budget);
+    }
+
+    /** Set the memory budget of THIS to BUDGET bytes, spilling tables if
+     *  necessary to stay within it.  BUDGET must not be negative. */
+    public void setMemoryBudget(long budget) {
+        _budget = checkBudget(budget);
+        evict();
+    }
+
+    /** Return BUDGET, after checking that it is a valid memory budget. */
+    private static long checkBudget(long budget) {
+        if (budget < 0) {
+            throw error("invalid memory budget: %d", budget);
+        }
+        return budget;
     }
 
     /** Return the Table whose name is NAME stored in this database, or null
-     *  if there is no such table. */
+     *  if there is no such table.  If the table has been loaded but not
+     *  yet read, or has been spilled, reads it first. */
     public Table get(String name) {
-        return _allTables.get(name);
+        Entry entry = _tables.get(name);
+        if (entry == null) {
+            return null;
+        }
+        Table table = entry.table();
+        evict();
+        return table;
+    }
+
+    /** Return the Table whose name is NAME, as for get, locked for
+     *  writing (see Table.writeLock), or null if there is no such
+     *  table.  The caller must unlock it. */
+    public Table getForWriting(String name) {
+        while (true) {
+            Table table = get(name);
+            if (table == null) {
+                return null;
+            }
+            table.writeLock();
+            Entry entry = _tables.get(name);
+            if (entry != null && entry._table == table) {
+                return table;
+            }
+            table.writeUnlock();
+        }
     }
 
     /** Set or replace the table named NAME in THIS to TABLE.  TABLE and
-     *  NAME must not be null, and NAME must be a valid name for a table. */
+     *  NAME must not be null, and NAME must be a valid name for a table.
+     *  If NAME was a view, it no longer is (see putView). */
     public void put(String name, Table table) {
         if (name == null || table == null) {
             throw new IllegalArgumentException("null argument");
         }
-        _allTables.put(name, table);
+        long ticket = logged(log -> log.logTable(name, table), () -> {
+            _views.remove(name);
+            replace(name, new Entry(table, null));
+        });
+        evict();
+        refreshViews(name);
+        awaitLog(ticket);
+    }
+
+    /** Set or replace the table named VIEW.name() in THIS to TABLE, the
+     *  current contents of VIEW, and record that it is to be kept up to
+     *  date as VIEW's tables change (see refreshViews).  VIEW must not
+     *  depend on itself, directly or through other views. */
+    public void putView(View view, Table table) {
+        if (dependsOn(view, view.name())) {
+            throw error("view %s would depend on itself", view.name());
+        }
+        String name = view.name();
+        boolean isNew = _views.get(name) != view;
+        long ticket =
+            logged(log -> isNew ? log.logView(name, view.definition()) : 0,
+                   () -> {
+                       _views.put(name, view);
+                       replace(name, new Entry(table, null));
+                   });
+        evict();
+        awaitLog(ticket);
+    }
+
+    /** Return the names of all my tables. */
+    public List<String> names() {
+        return new ArrayList<>(_tables.keySet());
+    }
+
+    /** Return my views (see putView), each after those it selects from. */
+    public List<View> views() {
+        ArrayList<View> result = new ArrayList<>();
+        ArrayList<View> remaining = new ArrayList<>(_views.values());
+        while (!remaining.isEmpty()) {
+            for (int i = 0; i < remaining.size(); i += 1) {
+                View view = remaining.get(i);
+                boolean ready = true;
+                for (View other : remaining) {
+                    ready &= !view.uses(other.name());
+                }
+                if (ready) {
+                    result.add(view);
+                    remaining.remove(i);
+                    break;
+                }
+            }
+        }
+        return result;
     }
 
-    // FILL IN?
-    private HashMap<String, Table> _allTables;
+    /** Record my changes in LOG from now on (see WriteAheadLog), or stop
+     *  recording them if LOG is null. */
+    public void setLog(WriteAheadLog log) {
+        _log = log;
+    }
+
+    /** Record in my log, if any, that ROWS have been added to the table
+     *  named NAME, and return a ticket for awaitLog.  Must be called
+     *  after the rows are added, while the table is still locked for
+     *  writing, so that the changes to a table are recorded in the order
+     *  they were made, and so that a checkpoint's snapshot of the table
+     *  includes the rows unless the record follows it (see
+     *  WriteAheadLog). */
+    public long logRows(String name, List<String[]> rows) {
+        WriteAheadLog log = _log;
+        if (log == null || rows.isEmpty()) {
+            return 0;
+        }
+        return log.logRows(name, rows);
+    }
+
+    /** Record in my log, if any, that an index has been created on
+     *  column COLUMN of the table named NAME (see Table.createIndex),
+     *  and return a ticket for awaitLog.  Must be called after the index
+     *  is created, while the table is still locked for writing, as for
+     *  logRows. */
+    public long logIndex(String name, String column) {
+        WriteAheadLog log = _log;
+        return log == null ? 0 : log.logIndex(name, column);
+    }
+
+    /** Wait until the change recorded in my log with ticket TICKET is
+     *  durable (see WriteAheadLog.await).  A TICKET of 0 denotes no
+     *  record. */
+    public void awaitLog(long ticket) {
+        WriteAheadLog log = _log;
+        if (log != null && ticket != 0) {
+            log.await(ticket);
+        }
+    }
+
+    /** Return the result recorded by cacheResult for the query whose key
+     *  (see Query.key) is KEY, if it was computed from tables whose
+     *  versions (see Table.version) were VERSIONS, or null if there is
+     *  no such result.  The result must not be modified. */
+    public Table cachedResult(String key, long[] versions) {
+        synchronized (_results) {
+            CachedResult cached = _results.get(key);
+            if (cached == null || !Arrays.equals(cached._versions, versions)) {
+                return null;
+            }
+            return cached._result;
+        }
+    }
+
+    /** Record RESULT, which must not be modified afterwards, as the
+     *  result of the query whose key is KEY, computed from tables whose
+     *  versions were VERSIONS (see cachedResult).  RESULT is kept until
+     *  it is among the least recently used of more than
+     *  MAX_CACHED_RESULTS results, or is discarded to stay within my
+     *  memory budget. */
+    public void cacheResult(String key, long[] versions, Table result) {
+        synchronized (_results) {
+            _results.put(key, new CachedResult(result, versions));
+        }
+        evict();
+    }
+
+    /** Return true iff NAME is the name of a view (see putView). */
+    public boolean isView(String name) {
+        return _views.containsKey(name);
+    }
+
+    /** Bring up to date all views that depend, directly or through
+     *  other views, on the table named NAME, which has changed.  A view
+     *  whose select clause no longer applies to the tables it names
+     *  (because one has been replaced by a table without the columns it
+     *  uses) becomes an ordinary table with its last contents. */
+    public void refreshViews(String name) {
+        for (View view : _views.values()) {
+            if (view.uses(name)) {
+                boolean changed;
+                try {
+                    changed = view.refresh(this);
+                } catch (DBException e) {
+                    _views.remove(view.name(), view);
+                    continue;
+                }
+                if (changed) {
+                    refreshViews(view.name());
+                }
+            }
+        }
+    }
+
+    /** Return true iff VIEW selects from the table named NAME, directly
+     *  or through other views. */
+    private boolean dependsOn(View view, String name) {
+        if (view.uses(name)) {
+            return true;
+        }
+        for (View other : _views.values()) {
+            if (view.uses(other.name()) && dependsOn(other, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Set or replace the table named NAME in THIS to the contents of
+     *  the file NAME.db.  Only the header of the file is read now, to
+     *  check that it is a valid table; its rows are read by the first
+     *  call to get(NAME).  Until then, the file should not change. */
+    public void load(String name) {
+        Path file = Paths.get(name + ".db");
+        try {
+            new Table(Table.readTitles(file));
+        } catch (NoSuchFileException e) {
+            throw error("could not find %s.db", name);
+        } catch (IOException e) {
+            throw error("problem reading from %s.db", name);
+        }
+        long ticket = logged(log -> log.logLoad(name), () -> {
+            _views.remove(name);
+            replace(name, new Entry(null, file));
+        });
+        refreshViews(name);
+        awaitLog(ticket);
+    }
+
+    /** Record a change in my log, if any, by calling RECORD, make the
+     *  change by calling CHANGE, and return the ticket RECORD returns,
+     *  for awaitLog (0 if there is no log).  No checkpoint of the log
+     *  begins a new generation between the two (see
+     *  WriteAheadLog.beginChange). */
+    private long logged(ToLongFunction<WriteAheadLog> record,
+                        Runnable change) {
+        WriteAheadLog log = _log;
+        if (log == null) {
+            change.run();
+            return 0;
+        }
+        log.beginChange();
+        try {
+            long ticket = record.applyAsLong(log);
+            change.run();
+            return ticket;
+        } finally {
+            log.endChange();
+        }
+    }
+
+    /** Make ENTRY the entry for NAME, discarding any previous entry
+     *  (and its spill file). */
+    private void replace(String name, Entry entry) {
+        Entry old = _tables.put(name, entry);
+        if (old != null) {
+            old.discard();
+        }
+    }
+
+    /** Discard cached results (see cachedResult), and then spill least
+     *  recently used tables, until the results and tables in memory fit
+     *  in my budget, or only the most recently used table remains.
+     *  Tables that are locked are skipped.  Without a budget, returns at once,
+     *  without taking _evictionLock, so that threads using an unbudgeted
+     *  database do not wait for one another here. */
+    private void evict() {
+        if (_budget == Long.MAX_VALUE) {
+            return;
+        }
+        synchronized (_evictionLock) {
+            ArrayList<Entry> resident = new ArrayList<>();
+            long total;
+            total = 0;
+            for (Entry entry : _tables.values()) {
+                Table table = entry._table;
+                if (table != null) {
+                    resident.add(entry);
+                    total += table.estimatedBytes();
+                }
+            }
+            synchronized (_results) {
+                for (CachedResult cached : _results.values()) {
+                    total += cached._result.estimatedBytes();
+                }
+                Iterator<CachedResult> results = _results.values().iterator();
+                while (total > _budget && results.hasNext()) {
+                    total -= results.next()._result.estimatedBytes();
+                    results.remove();
+                }
+            }
+            resident.sort(Comparator.comparingLong(e -> e._lastUsed));
+            for (int i = 0; i < resident.size() - 1 && total > _budget;
+                 i += 1) {
+                total -= resident.get(i).spill();
+            }
+        }
+    }
+
+    /** Delete the spill file FILE, ignoring errors. */
+    private static void deleteSpillFile(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            /* Ignore IOException */
+        }
+    }
+
+    /** The state of one named table: in memory, or in a file (a .db
+     *  file that has been loaded but not yet read, or a spill file), or
+     *  both while it is being spilled.  Changes of state are made while
+     *  holding the entry's monitor. */
+    private class Entry {
+        /** An entry for TABLE, or for the contents of FILE if TABLE is
+         *  null. */
+        Entry(Table table, Path file) {
+            _table = table;
+            _file = file;
+            touch();
+        }
+
+        /** Return my table, reading it first if necessary, and mark it
+         *  as most recently used. */
+        Table table() {
+            Table table = _table;
+            if (table == null) {
+                synchronized (this) {
+                    table = _table;
+                    if (table == null) {
+                        try {
+                            table = Table.readTable(_file);
+                        } catch (IOException e) {
+                            throw error("problem reading from %s", _file);
+                        }
+                        if (_spilled) {
+                            deleteSpillFile(_file);
+                            _spilled = false;
+                        }
+                        _file = null;
+                        _table = table;
+                    }
+                }
+            }
+            touch();
+            return table;
+        }
+
+        /** Write my table to a spill file and drop it from memory,
+         *  unless it is not in memory or is locked.  Return the
+         *  estimated number of bytes freed. */
+        synchronized long spill() {
+            Table table = _table;
+            if (table == null || !table.tryWriteLock()) {
+                return 0;
+            }
+            try {
+                Path file = Files.createTempFile("db61b", ".db");
+                file.toFile().deleteOnExit();
+                try {
+                    table.writeBinary(file);
+                } catch (IOException e) {
+                    deleteSpillFile(file);
+                    throw e;
+                }
+                _file = file;
+                _spilled = true;
+                _table = null;
+                return table.estimatedBytes();
+            } catch (IOException e) {
+                throw error("could not spill a table");
+            } finally {
+                table.writeUnlock();
+            }
+        }
+
+        /** Release the resources of this entry, which is no longer in
+         *  use. */
+        synchronized void discard() {
+            if (_spilled) {
+                deleteSpillFile(_file);
+                _spilled = false;
+            }
+        }
+
+        /** Mark my table as most recently used. */
+        private void touch() {
+            _lastUsed = _clock.incrementAndGet();
+        }
+
+        /** My table, if it is in memory, and otherwise null. */
+        private volatile Table _table;
+        /** The file holding my table when it is not in memory. */
+        private Path _file;
+        /** True iff _file is a spill file, to be deleted when no longer
+         *  needed. */
+        private boolean _spilled;
+        /** The time of the last use of my table (see _clock). */
+        private volatile long _lastUsed;
+    }
+
+    /** The result of a select clause, retained in _results. */
+    private static class CachedResult {
+        /** A record that a query over tables whose versions were VERSIONS
+         *  gave RESULT. */
+        CachedResult(Table result, long[] versions) {
+            _result = result;
+            _versions = versions;
+        }
+
+        /** The result. */
+        private final Table _result;
+        /** The versions of the tables queried, in order. */
+        private final long[] _versions;
+    }
+
+    /** Maximum number of entries in _results. */
+    private static final int MAX_CACHED_RESULTS = 64;
+
+    /** The results of recent select clauses, keyed by Query.key, least
+     *  recently used first.  Guarded by itself. */
+    private final LinkedHashMap<String, CachedResult> _results =
+        new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<String, CachedResult> eldest) {
+                return size() > MAX_CACHED_RESULTS;
+            }
+        };
+    /** The log recording my changes, or null if none. */
+    private volatile WriteAheadLog _log;
+    /** The views among my tables, by name. */
+    private final ConcurrentHashMap<String, View> _views =
+        new ConcurrentHashMap<>();
+    /** The entries for all my tables, by name. */
+    private final ConcurrentHashMap<String, Entry> _tables;
+    /** Source of times for Entry._lastUsed. */
+    private final AtomicLong _clock = new AtomicLong();
+    /** Held while choosing and spilling tables. */
+    private final Object _evictionLock = new Object();
+    /** Approximate limit on the memory used by tables in memory, in
+     *  bytes. */
+    private volatile long _budget;
 }
@@ -1,5 +1,8 @@
 package db61b;
 
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Paths;
 import java.util.Scanner;
 
 /** The main program for db61b.
@@ -10,17 +13,138 @@ public class Main {
     /** Version designation for this program. */
     private static final String VERSION = "2.0";
 
+    /** Default milliseconds between forces of the log to disk. */
+    private static final long DEFAULT_SYNC_INTERVAL = 10;
+    /** Default milliseconds between checkpoints of the log. */
+    private static final long DEFAULT_CHECKPOINT_INTERVAL = 60000;
+
     /** Starting with an empty database, read and execute commands from
      *  System.in until receiving a 'quit' ('exit') command or until
-     *  reaching the end of input. */
-    public static void main(String[] unused) {
-        System.out.printf("DB61B System.  Version %s.%n", VERSION);
-
+     *  reaching the end of input.  ARGS may contain "--memory N",
+     *  limiting the tables kept in memory to about N bytes (see
+     *  Database), and "--serve PORT", in which case commands come
+     *  instead from clients connecting to PORT on the local host (see
+     *  Server).  With "--log DIR", the tables are restored at startup
+     *  from a write-ahead log in directory DIR, and changes to them are
+     *  recorded there (see WriteAheadLog); "--sync MILLIS" sets the
+     *  interval between forces of the log to disk (default 10), and
+     *  "--checkpoint MILLIS" that between checkpoints (default 60000). */
+    public static void main(String[] args) {
         Database db = new Database();
+        int port = -1;
+        String logDir = null;
+        long syncInterval = DEFAULT_SYNC_INTERVAL;
+        long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                usage();
+            }
+            try {
+                switch (args[i]) {
+                case "--memory":
+                    db.setMemoryBudget(Long.parseLong(args[i + 1]));
+                    break;
+                case "--serve":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--log":
+                    logDir = args[i + 1];
+                    break;
+                case "--sync":
+                    syncInterval = Long.parseLong(args[i + 1]);
+                    break;
+                case "--checkpoint":
+                    checkpointInterval = Long.parseLong(args[i + 1]);
+                    break;
+                default:
+                    usage();
+                }
+            } catch (NumberFormatException | DBException e) {
+                usage();
+            }
+        }
+        if (syncInterval < 0 || checkpointInterval < 0) {
+            usage();
+        }
+
+        WriteAheadLog log = null;
+        if (logDir != null) {
+            try {
+                log = WriteAheadLog.open(Paths.get(logDir), db, syncInterval,
+                                         checkpointInterval);
+            } catch (IOException | DBException e) {
+                System.err.printf("Error: could not open log in %s: %s%n",
+                                  logDir, e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        if (port >= 0) {
+            serve(port, db, log);
+            return;
+        }
+
+        runSession(new Scanner(System.in), System.out, db);
+        if (!closeLog(log)) {
+            System.exit(1);
+        }
+    }
+
+    /** Serve the tables in DB, whose changes are recorded in LOG (if not
+     *  null), to clients connecting to PORT (see Server), until the
+     *  program is stopped.  The server stops accepting clients and LOG
+     *  is closed as the program exits, however it does so. */
+    private static void serve(int port, Database db, WriteAheadLog log) {
+        Server server;
+        try {
+            server = new Server(port, db);
+        } catch (IOException e) {
+            System.err.printf("Error: %s%n", e.getMessage());
+            closeLog(log);
+            System.exit(1);
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+            } catch (IOException e) {
+                /* Ignore IOException */
+            }
+            closeLog(log);
+        }));
+        System.out.printf("DB61B System.  Version %s.  Serving on"
+                          + " port %d.%n", VERSION, server.port());
+        try {
+            server.serve();
+        } catch (IOException e) {
+            System.err.printf("Error: %s%n", e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /** Close LOG, if it is not null, returning false (after reporting
+     *  the problem) iff that fails. */
+    private static boolean closeLog(WriteAheadLog log) {
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException | DBException e) {
+                System.err.printf("Error: could not close log: %s%n",
+                                  e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Read and execute commands from INPUT on the tables in DB, writing
+     *  prompts and results on OUTPUT, until receiving a 'quit' ('exit')
+     *  command or until reaching the end of input. */
+    static void runSession(Scanner input, PrintStream output, Database db) {
+        output.printf("DB61B System.  Version %s.%n", VERSION);
 
-        Scanner input = new Scanner(System.in);
         CommandInterpreter interpreter =
-            new CommandInterpreter(input, System.out);
+            new CommandInterpreter(input, output, db, output);
 
         while (true) {
             try {
@@ -28,11 +152,19 @@ public class Main {
                     break;
                 }
             } catch (DBException e) {
-                System.out.printf("Error: %s%n", e.getMessage());
+                output.printf("Error: %s%n", e.getMessage());
                 interpreter.skipCommand();
             }
         }
+        output.flush();
     }
 
-}
+    /** Print a usage message on the standard error and exit. */
+    private static void usage() {
+        System.err.println("Usage: java db61b.Main [--memory BYTES]"
+                           + " [--serve PORT] [--log DIR] [--sync MILLIS]"
+                           + " [--checkpoint MILLIS]");
+        System.exit(1);
+    }
 
+}
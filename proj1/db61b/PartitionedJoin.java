@@ -0,0 +1,251 @@
+package db61b;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** An equijoin of rows of two tables, done in parallel.  The rows of
+ *  both tables are first partitioned by the high-order bits of the
+ *  hashes of their join keys, so that rows with equal keys always land
+ *  in partitions with the same number.  Each pair of corresponding
+ *  partitions is then joined as a separate task on a ForkJoinPool, by
+ *  building a hash table of the partition from one table (the "build"
+ *  side) and probing it with each row of the other.  The tasks share
+ *  nothing but the (read-only) tables, and collect the matching pairs
+ *  of rows separately.
+ *  @author
+ */
+class PartitionedJoin {
+
+    /** A join whose keys are the codes of the values in BUILDVALUES
+     *  (for the build side) and PROBEVALUES (for the probe side), in
+     *  which TOBUILDCODES[i] maps codes in PROBEVALUES[i] to those of
+     *  the same values in BUILDVALUES[i] (see Table.ValueList.translate).
+     *  Pairs of rows must also satisfy CONDITIONS.  The build side is
+     *  the first table iff BUILDFIRST.  Tasks run on POOL. */
+    PartitionedJoin(Table.ValueList[] buildValues,
+                    Table.ValueList[] probeValues, int[][] toBuildCodes,
+                    List<Condition> conditions, boolean buildFirst,
+                    ForkJoinPool pool) {
+        _buildValues = buildValues;
+        _probeValues = probeValues;
+        _toBuildCodes = toBuildCodes;
+        _conditions = conditions;
+        _buildFirst = buildFirst;
+        _pool = pool;
+        int partitions = Math.min(MAX_PARTITIONS,
+                                  PARTITIONS_PER_THREAD
+                                  * pool.getParallelism());
+        _bits = 32 - Integer.numberOfLeadingZeros(partitions - 1);
+    }
+
+    /** Return the pairs of rows, one from BUILDROWS and one from
+     *  PROBEROWS, whose keys are equal and that satisfy my conditions.
+     *  The result holds the row of the first table followed by that of
+     *  the second for each pair, in no particular order. */
+    int[] join(int[] buildRows, int[] probeRows) {
+        Partitions build = partition(buildRows, _buildValues, null);
+        Partitions probe = partition(probeRows, _probeValues, _toBuildCodes);
+        JoinTask[] tasks = new JoinTask[1 << _bits];
+        for (int p = 0; p < tasks.length; p += 1) {
+            tasks[p] = new JoinTask(build, probe, p);
+        }
+        _pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+
+        int n;
+        n = 0;
+        for (JoinTask task : tasks) {
+            n += task._size;
+        }
+        int[] pairs = new int[n];
+        n = 0;
+        for (JoinTask task : tasks) {
+            System.arraycopy(task._pairs, 0, pairs, n, task._size);
+            n += task._size;
+        }
+        return pairs;
+    }
+
+    /** Return ROWS partitioned by the hashes of their keys, which are
+     *  the codes of their values in VALUES, translated by TRANSLATE
+     *  unless it is null.  Rows whose keys cannot be translated (having
+     *  values missing from the build side) are dropped. */
+    private Partitions partition(int[] rows, Table.ValueList[] values,
+                                 int[][] translate) {
+        int[] kept = translate == null ? rows : new int[rows.length];
+        int[] hashes = new int[rows.length];
+        int[] starts = new int[(1 << _bits) + 1];
+        int[] key = new int[values.length];
+        int n;
+        n = 0;
+    hashing:
+        for (int r : rows) {
+            for (int k = 0; k < key.length; k += 1) {
+                key[k] = values[k].getCode(r);
+                if (translate != null) {
+                    key[k] = translate[k][key[k]];
+                    if (key[k] == -1) {
+                        continue hashing;
+                    }
+                }
+            }
+            kept[n] = r;
+            hashes[n] = hash(key);
+            starts[partitionOf(hashes[n]) + 1] += 1;
+            n += 1;
+        }
+        for (int p = 1; p < starts.length; p += 1) {
+            starts[p] += starts[p - 1];
+        }
+
+        Partitions result = new Partitions(n, starts);
+        int[] next = Arrays.copyOf(starts, starts.length - 1);
+        for (int i = 0; i < n; i += 1) {
+            int p = partitionOf(hashes[i]);
+            result._rows[next[p]] = kept[i];
+            result._hashes[next[p]] = hashes[i];
+            next[p] += 1;
+        }
+        return result;
+    }
+
+    /** Return the hash of KEY, with its bits well mixed. */
+    private static int hash(int[] key) {
+        return Arrays.hashCode(key) * GOLDEN_RATIO;
+    }
+
+    /** Return the number of the partition of rows whose keys have hash
+     *  HASH. */
+    private int partitionOf(int hash) {
+        return _bits == 0 ? 0 : hash >>> (32 - _bits);
+    }
+
+    /** Return true iff row BUILDROW of the build side and row PROBEROW
+     *  of the probe side have equal keys. */
+    private boolean sameKey(int buildRow, int probeRow) {
+        for (int k = 0; k < _buildValues.length; k += 1) {
+            if (_buildValues[k].getCode(buildRow)
+                != _toBuildCodes[k][_probeValues[k].getCode(probeRow)]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Rows of one side of the join, grouped by partition. */
+    private static class Partitions {
+        /** Room for N rows, with the rows of partition p to be stored at
+         *  positions STARTS[p] .. STARTS[p+1]-1. */
+        Partitions(int n, int[] starts) {
+            _rows = new int[n];
+            _hashes = new int[n];
+            _starts = starts;
+        }
+
+        /** The rows. */
+        private final int[] _rows;
+        /** The hashes of the keys of _rows. */
+        private final int[] _hashes;
+        /** The start of each partition in _rows, followed by the
+         *  total number of rows. */
+        private final int[] _starts;
+    }
+
+    /** The join of one pair of partitions. */
+    private class JoinTask extends RecursiveAction {
+        /** A task joining partition number P of BUILD and of PROBE. */
+        JoinTask(Partitions build, Partitions probe, int p) {
+            _build = build;
+            _probe = probe;
+            _p = p;
+            _pairs = new int[INITIAL_PAIRS];
+        }
+
+        @Override
+        protected void compute() {
+            int low = _build._starts[_p], high = _build._starts[_p + 1];
+            int n = high - low;
+            if (n == 0 || _probe._starts[_p] == _probe._starts[_p + 1]) {
+                return;
+            }
+            int mask = Integer.highestOneBit(2 * n - 1) * 2 - 1;
+            int[] heads = new int[mask + 1];
+            Arrays.fill(heads, -1);
+            int[] next = new int[n];
+            for (int i = 0; i < n; i += 1) {
+                int slot = _build._hashes[low + i] & mask;
+                next[i] = heads[slot];
+                heads[slot] = i;
+            }
+
+            for (int j = _probe._starts[_p]; j < _probe._starts[_p + 1];
+                 j += 1) {
+                int hash = _probe._hashes[j];
+                int p = _probe._rows[j];
+                for (int i = heads[hash & mask]; i != -1; i = next[i]) {
+                    int b = _build._rows[low + i];
+                    if (_build._hashes[low + i] != hash || !sameKey(b, p)) {
+                        continue;
+                    }
+                    int r1 = _buildFirst ? b : p;
+                    int r2 = _buildFirst ? p : b;
+                    if (Condition.test(_conditions, r1, r2)) {
+                        addPair(r1, r2);
+                    }
+                }
+            }
+        }
+
+        /** Record that rows R1 and R2 (of the first and second tables)
+         *  match. */
+        private void addPair(int r1, int r2) {
+            if (_size + 2 > _pairs.length) {
+                _pairs = Arrays.copyOf(_pairs, 2 * _pairs.length);
+            }
+            _pairs[_size] = r1;
+            _pairs[_size + 1] = r2;
+            _size += 2;
+        }
+
+        /** The partitioned rows of each side. */
+        private final Partitions _build, _probe;
+        /** The number of the partition I join. */
+        private final int _p;
+        /** The matching pairs of rows found, in _pairs[0 .. _size-1]. */
+        private int[] _pairs;
+        /** Number of entries used in _pairs. */
+        private int _size;
+    }
+
+    /** Number of partitions per thread of the pool, so that the work is
+     *  spread evenly even when some partitions are larger than others. */
+    private static final int PARTITIONS_PER_THREAD = 4;
+    /** Maximum number of partitions. */
+    private static final int MAX_PARTITIONS = 1 << 10;
+    /** Multiplier for mixing hash bits (2^32 divided by the golden
+     *  ratio). */
+    private static final int GOLDEN_RATIO = 0x9E3779B9;
+    /** Initial size of each task's array of pairs. */
+    private static final int INITIAL_PAIRS = 16;
+
+    /** The values of the key columns on the build side. */
+    private final Table.ValueList[] _buildValues;
+    /** The values of the key columns on the probe side. */
+    private final Table.ValueList[] _probeValues;
+    /** Maps from probe-side codes to build-side codes. */
+    private final int[][] _toBuildCodes;
+    /** Conditions that joined pairs must satisfy. */
+    private final List<Condition> _conditions;
+    /** True iff the build side is the first table. */
+    private final boolean _buildFirst;
+    /** The pool running the tasks. */
+    private final ForkJoinPool _pool;
+    /** Number of bits of hash that select a partition. */
+    private final int _bits;
+}
@@ -0,0 +1,163 @@
+package db61b;
+
+import java.util.Arrays;
+import java.util.List;
+
+/** A parsed select clause: the names of the selected columns, the
+ *  tables selected from (and the names by which they were found), and
+ *  the conditions.  A Query may be evaluated into a new Table (select)
+ *  or as a stream of tuples (stream).  Either way, its tables must be
+ *  locked for reading (see lock) until the evaluation is finished.
+ *  @author
+ */
+class Query {
+
+    /** A query selecting COLUMNNAMES from TABLES, which were found under
+     *  the names TABLENAMES, subject to CONDITIONS.  There must be one
+     *  or two tables. */
+    Query(List<String> columnNames, List<String> tableNames, Table[] tables,
+          List<Condition> conditions) {
+        _columnNames = columnNames;
+        _tableNames = tableNames;
+        _tables = tables;
+        _conditions = conditions;
+        _limit = -1;
+    }
+
+    /** Restrict my result to its first LIMIT rows (in order) after the
+     *  first OFFSET.  LIMIT and OFFSET must not be negative. */
+    void setLimit(int limit, int offset) {
+        _limit = limit;
+        _offset = offset;
+    }
+
+    /** Acquire read locks on my tables (see Table.readLock). */
+    void lock() {
+        Table.readLock(_tables);
+    }
+
+    /** Release the locks acquired by lock. */
+    void unlock() {
+        Table.readUnlock(_tables);
+    }
+
+    /** Return a new Table containing the result of THIS. */
+    Table select() {
+        if (_limit >= 0) {
+            Table result = new Table(_columnNames);
+            TupleStream rows = stream();
+            while (rows.next()) {
+                result.bulkAdd(rows.values());
+            }
+            result.endBulkAdd();
+            return result;
+        }
+        if (_tables.length == 1) {
+            return _tables[0].select(_columnNames, _conditions);
+        } else {
+            return _tables[0].select(_tables[1], _columnNames, _conditions);
+        }
+    }
+
+    /** Return a new Table containing the part of the result of THIS that
+     *  comes from rows of my tables numbered at least FROM[0] (in the
+     *  first table) or FROM[1] (in the second).  I must have no limit. */
+    Table selectSince(int[] from) {
+        if (_tables.length == 1) {
+            return _tables[0].select(_columnNames, _conditions, from[0]);
+        } else {
+            return _tables[0].select(_tables[1], _columnNames, _conditions,
+                                     from[0], from[1]);
+        }
+    }
+
+    /** Return the rows of the result of THIS, in order, produced on
+     *  demand (see Table.stream).  My tables must stay locked until the
+     *  result has been consumed. */
+    TupleStream stream() {
+        int needed;
+        if (_limit < 0) {
+            needed = -1;
+        } else {
+            needed = (int) Math.min(Integer.MAX_VALUE, (long) _offset + _limit);
+        }
+        TupleStream result;
+        if (_tables.length == 1) {
+            result = _tables[0].stream(_columnNames, _conditions, needed);
+        } else {
+            result = _tables[0].stream(_tables[1], _columnNames, _conditions,
+                                       needed);
+        }
+        if (_offset > 0) {
+            result = new TupleStream.Limit(result, _offset, _limit);
+        }
+        return result;
+    }
+
+    /** Return a key identifying THIS.  Queries that differ only in the
+     *  order of their conditions or in white space have the same key. */
+    String key() {
+        String[] descriptions = new String[_conditions.size()];
+        for (int i = 0; i < descriptions.length; i += 1) {
+            descriptions[i] = _conditions.get(i).toString();
+        }
+        Arrays.sort(descriptions);
+        return String.join(",", _columnNames) + " from "
+            + String.join(",", _tableNames) + " where "
+            + String.join(" and ", descriptions)
+            + " limit " + _limit + " offset " + _offset;
+    }
+
+    /** Return the text of a select clause denoting THIS, from which it
+     *  may be parsed again (perhaps to apply to other tables of the same
+     *  names). */
+    @Override
+    public String toString() {
+        String result = "select " + String.join(", ", _columnNames)
+            + " from " + String.join(", ", _tableNames);
+        for (int i = 0; i < _conditions.size(); i += 1) {
+            result += (i == 0 ? " where " : " and ") + _conditions.get(i);
+        }
+        if (_limit >= 0) {
+            result += " limit " + _limit + " offset " + _offset;
+        }
+        return result;
+    }
+
+    /** Return true iff my result is limited (see setLimit). */
+    boolean limited() {
+        return _limit >= 0;
+    }
+
+    /** Return the names under which my tables were found. */
+    List<String> tableNames() {
+        return _tableNames;
+    }
+
+    /** Return my tables. */
+    Table[] tables() {
+        return _tables;
+    }
+
+    /** Return the current versions of my tables (see Table.version). */
+    long[] versions() {
+        long[] result = new long[_tables.length];
+        for (int i = 0; i < _tables.length; i += 1) {
+            result[i] = _tables[i].version();
+        }
+        return result;
+    }
+
+    /** The names of the selected columns. */
+    private final List<String> _columnNames;
+    /** The names under which _tables were found. */
+    private final List<String> _tableNames;
+    /** The tables selected from. */
+    private final Table[] _tables;
+    /** The conditions that selected rows satisfy. */
+    private final List<Condition> _conditions;
+    /** The maximum number of rows in my result, or -1 if unlimited. */
+    private int _limit;
+    /** The number of rows skipped at the start of my result. */
+    private int _offset;
+}
@@ -0,0 +1,220 @@
+package db61b;
+
+/** A set of row numbers kept in the order given by a RowOrder (the
+ *  order of the rows those numbers denote).  The set is a skip list,
+ *  so that adding a row takes O(log N) expected time and traversing
+ *  the rows in order takes time proportional to their number.  Rows
+ *  that are already known to follow every row in the set may be
+ *  appended in constant time.
+ *  @author
+ */
+class RowIndex {
+
+    /** An ordering on row numbers. */
+    interface RowOrder {
+        /** Return <0, 0, or >0 depending on whether row ROW0 is less
+         *  than, equal to, or greater than row ROW1. */
+        int compare(int row0, int row1);
+    }
+
+    /** An empty index ordered by ORDER. */
+    RowIndex(RowOrder order) {
+        _order = order;
+        _head = new Node(-1, MAX_LEVEL);
+        _tails = new Node[MAX_LEVEL];
+        clear();
+    }
+
+    /** Return the number of rows in THIS. */
+    int size() {
+        return _size;
+    }
+
+    /** Remove all rows from THIS. */
+    void clear() {
+        for (int i = 0; i < MAX_LEVEL; i += 1) {
+            _head._next[i] = null;
+            _tails[i] = _head;
+        }
+        _level = 1;
+        _size = 0;
+    }
+
+    /** Add ROW to THIS in its proper place, unless a row that compares
+     *  equal to it is already present.  Return true iff ROW was
+     *  added. */
+    boolean add(int row) {
+        Node[] update = new Node[MAX_LEVEL];
+        Node p = _head;
+        for (int i = _level - 1; i >= 0; i -= 1) {
+            while (p._next[i] != null
+                   && _order.compare(p._next[i]._row, row) < 0) {
+                p = p._next[i];
+            }
+            update[i] = p;
+        }
+        if (p._next[0] != null && _order.compare(p._next[0]._row, row) == 0) {
+            return false;
+        }
+        link(new Node(row, randomLevel()), update);
+        return true;
+    }
+
+    /** Add ROW to THIS, assuming that it is greater than every row
+     *  already present. */
+    void append(int row) {
+        link(new Node(row, randomLevel()), _tails);
+    }
+
+    /** Return a Cursor positioned before my first row. */
+    Cursor cursor() {
+        return new Cursor(_head._next[0]);
+    }
+
+    /** Return my rows, in order. */
+    int[] toArray() {
+        int[] result = new int[_size];
+        int k;
+        k = 0;
+        for (Node p = _head._next[0]; p != null; p = p._next[0]) {
+            result[k] = p._row;
+            k += 1;
+        }
+        return result;
+    }
+
+    /** Sort ROWS into the order given by ORDER.  The sort is stable. */
+    static void sort(int[] rows, RowOrder order) {
+        int[] tmp = rows.clone();
+        mergeSort(tmp, rows, 0, rows.length, order);
+    }
+
+    /** Sort SRC[LOW .. HIGH-1] into DEST[LOW .. HIGH-1] according to
+     *  ORDER, assuming that the two ranges initially contain the same
+     *  values.  SRC is used as scratch space. */
+    private static void mergeSort(int[] src, int[] dest, int low, int high,
+                                  RowOrder order) {
+        if (high - low <= INSERTION_SORT_SIZE) {
+            for (int i = low + 1; i < high; i += 1) {
+                int row = dest[i];
+                int j;
+                for (j = i; j > low && order.compare(dest[j - 1], row) > 0;
+                     j -= 1) {
+                    dest[j] = dest[j - 1];
+                }
+                dest[j] = row;
+            }
+            return;
+        }
+        int mid = (low + high) >>> 1;
+        mergeSort(dest, src, low, mid, order);
+        mergeSort(dest, src, mid, high, order);
+        int i = low, j = mid;
+        for (int k = low; k < high; k += 1) {
+            if (j >= high || (i < mid && order.compare(src[i], src[j]) <= 0)) {
+                dest[k] = src[i];
+                i += 1;
+            } else {
+                dest[k] = src[j];
+                j += 1;
+            }
+        }
+    }
+
+    /** Insert NODE after the nodes PRED[0], PRED[1], ... at the
+     *  corresponding levels. */
+    private void link(Node node, Node[] pred) {
+        int lvl = node._next.length;
+        while (_level < lvl) {
+            pred[_level] = _head;
+            _level += 1;
+        }
+        for (int i = 0; i < lvl; i += 1) {
+            node._next[i] = pred[i]._next[i];
+            pred[i]._next[i] = node;
+            if (node._next[i] == null) {
+                _tails[i] = node;
+            }
+        }
+        _size += 1;
+    }
+
+    /** Return a random level for a new node: 1 with probability 3/4,
+     *  2 with probability 3/16, and so on. */
+    private int randomLevel() {
+        _seed ^= _seed << 13;
+        _seed ^= _seed >>> 17;
+        _seed ^= _seed << 5;
+        int lvl = 1 + Integer.numberOfTrailingZeros(_seed) / 2;
+        return Math.min(lvl, MAX_LEVEL);
+    }
+
+    /** A forward traversal of the rows of a RowIndex, in order. */
+    static class Cursor {
+        /** A Cursor whose next row is that of NEXT, if any. */
+        private Cursor(Node next) {
+            _nextNode = next;
+        }
+
+        /** Return true iff there are rows remaining. */
+        boolean hasNext() {
+            return _nextNode != null;
+        }
+
+        /** Return the next row without advancing past it.  Requires
+         *  hasNext(). */
+        int peek() {
+            return _nextNode._row;
+        }
+
+        /** Move THIS to the position of OTHER. */
+        void moveTo(Cursor other) {
+            _nextNode = other._nextNode;
+        }
+
+        /** Return the next row and advance past it.  Requires
+         *  hasNext(). */
+        int next() {
+            int row = _nextNode._row;
+            _nextNode = _nextNode._next[0];
+            return row;
+        }
+
+        /** The node holding my next row, or null if none remain. */
+        private Node _nextNode;
+    }
+
+    /** A node of the skip list. */
+    private static class Node {
+        /** A node holding ROW, linked at LEVEL levels. */
+        Node(int row, int level) {
+            _row = row;
+            _next = new Node[level];
+        }
+
+        /** The row number held here. */
+        private final int _row;
+        /** My successor at each level of the list. */
+        private final Node[] _next;
+    }
+
+    /** Ranges no longer than this are sorted by insertion sort. */
+    private static final int INSERTION_SORT_SIZE = 7;
+
+    /** Maximum number of levels.  With a promotion probability of 1/4,
+     *  this is ample for 2^31 rows. */
+    private static final int MAX_LEVEL = 16;
+
+    /** Ordering on my rows. */
+    private final RowOrder _order;
+    /** Sentinel preceding my first row at every level. */
+    private final Node _head;
+    /** The last node at each level (_head if that level is empty). */
+    private final Node[] _tails;
+    /** Number of levels currently in use. */
+    private int _level;
+    /** Number of rows in THIS. */
+    private int _size;
+    /** State of the generator used by randomLevel. */
+    private int _seed = 0x2545F491;
+}
@@ -0,0 +1,85 @@
+package db61b;
+
+import java.io.PrintStream;
+
+/** Prints rows of values on a PrintStream in the format of Table.print:
+ *  each row on its own line, indented by two spaces, with each value
+ *  followed by a space.  The rows are collected in a single buffer that
+ *  is reused for all of them and written out only when it is large, so
+ *  that printing many rows costs neither a String per row nor a write
+ *  (and, on an autoflushing stream, a flush) per row.  Nothing is
+ *  guaranteed to appear on the stream until flush is called.
+ *  @author
+ */
+class RowPrinter {
+
+    /** A RowPrinter writing on OUT. */
+    RowPrinter(PrintStream out) {
+        _out = out;
+        _buffer = new StringBuilder(CHUNK_SIZE + CHUNK_SIZE / 4);
+    }
+
+    /** Add VALUE to the current row. */
+    void print(String value) {
+        if (_rowStart) {
+            _buffer.append(INDENT);
+            _rowStart = false;
+        }
+        _buffer.append(value).append(' ');
+    }
+
+    /** End the current row. */
+    void endRow() {
+        if (_rowStart) {
+            _buffer.append(INDENT);
+        }
+        _buffer.append(NEWLINE);
+        _rowStart = true;
+        _rows += 1;
+        if (_buffer.length() >= CHUNK_SIZE) {
+            write();
+        }
+    }
+
+    /** Print the row VALUES. */
+    void printRow(String[] values) {
+        for (String value : values) {
+            print(value);
+        }
+        endRow();
+    }
+
+    /** Return the number of rows printed so far. */
+    int rows() {
+        return _rows;
+    }
+
+    /** Write out all the rows printed so far and flush the stream. */
+    void flush() {
+        write();
+        _out.flush();
+    }
+
+    /** Write out the contents of the buffer and empty it. */
+    private void write() {
+        _out.append(_buffer);
+        _buffer.setLength(0);
+    }
+
+    /** Number of characters collected before they are written out. */
+    static final int CHUNK_SIZE = 1 << 16;
+
+    /** The start of each row. */
+    private static final String INDENT = "  ";
+    /** The end of each row. */
+    private static final String NEWLINE = System.lineSeparator();
+
+    /** The stream written to. */
+    private final PrintStream _out;
+    /** The text not yet written to _out. */
+    private final StringBuilder _buffer;
+    /** True iff no value has been added to the current row. */
+    private boolean _rowStart = true;
+    /** The number of rows printed. */
+    private int _rows;
+}
@@ -0,0 +1,283 @@
+package db61b;
+
+import java.util.Arrays;
+import java.util.List;
+
+/** A sequence of rows of one table, or of pairs of rows of two tables,
+ *  produced one at a time on demand.  RowStreams are the first stages
+ *  of the plan for a select (see Table.stream): scanning tables,
+ *  filtering rows, and joining them.  Each stage pulls rows from the
+ *  one before only as its own rows are requested, so no stage collects
+ *  its output.
+ *  @author
+ */
+abstract class RowStream {
+
+    /** Advance to my next row, returning false if there are no more.
+     *  Must be called before the first row is available. */
+    abstract boolean next();
+
+    /** Return the current row of the first table. */
+    int row1() {
+        return _row1;
+    }
+
+    /** Return the current row of the second table, or the same as
+     *  row1() if I produce rows of only one table. */
+    int row2() {
+        return _row2;
+    }
+
+    /** Make ROW1 and ROW2 my current rows. */
+    void setRows(int row1, int row2) {
+        _row1 = row1;
+        _row2 = row2;
+    }
+
+    /** My current rows. */
+    private int _row1, _row2;
+
+    /** The rows of a table in the order of a RowIndex. */
+    static class IndexScan extends RowStream {
+        /** The rows remaining in ROWS. */
+        IndexScan(RowIndex.Cursor rows) {
+            _rows = rows;
+        }
+
+        @Override
+        boolean next() {
+            if (!_rows.hasNext()) {
+                return false;
+            }
+            int row = _rows.next();
+            setRows(row, row);
+            return true;
+        }
+
+        /** The rows not yet produced. */
+        private final RowIndex.Cursor _rows;
+    }
+
+    /** The rows of a table listed in an array. */
+    static class ArrayScan extends RowStream {
+        /** The rows in ROWS, in order. */
+        ArrayScan(int[] rows) {
+            _rows = rows;
+        }
+
+        @Override
+        boolean next() {
+            if (_next == _rows.length) {
+                return false;
+            }
+            setRows(_rows[_next], _rows[_next]);
+            _next += 1;
+            return true;
+        }
+
+        /** The rows. */
+        private final int[] _rows;
+        /** Position of the next row in _rows. */
+        private int _next;
+    }
+
+    /** Pairs of rows listed in an array, as returned by
+     *  PartitionedJoin.join. */
+    static class PairScan extends RowStream {
+        /** The pairs of rows in PAIRS (each row of the first table
+         *  followed by one of the second), in order. */
+        PairScan(int[] pairs) {
+            _pairs = pairs;
+        }
+
+        @Override
+        boolean next() {
+            if (_next == _pairs.length) {
+                return false;
+            }
+            setRows(_pairs[_next], _pairs[_next + 1]);
+            _next += 2;
+            return true;
+        }
+
+        /** The pairs. */
+        private final int[] _pairs;
+        /** Position of the next pair in _pairs. */
+        private int _next;
+    }
+
+    /** The rows of another RowStream that satisfy some Conditions. */
+    static class Filter extends RowStream {
+        /** The rows of INPUT that satisfy CONDITIONS. */
+        Filter(RowStream input, List<Condition> conditions) {
+            _input = input;
+            _conditions = Condition.bySelectivity(conditions);
+        }
+
+        @Override
+        boolean next() {
+            while (_input.next()) {
+                int row1 = _input.row1(), row2 = _input.row2();
+                if (Condition.test(_conditions, row1, row2)) {
+                    setRows(row1, row2);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** The source of my rows. */
+        private final RowStream _input;
+        /** The conditions my rows satisfy, most selective first. */
+        private final List<Condition> _conditions;
+    }
+
+    /** All pairs of a row from another RowStream (the outer rows) and a
+     *  row from a list (the inner rows). */
+    static class NestedLoopJoin extends RowStream {
+        /** Pairs of a row of OUTER, from the first table, and a row of
+         *  INNER, from the second. */
+        NestedLoopJoin(RowStream outer, int[] inner) {
+            _outer = outer;
+            _inner = inner;
+            _next = inner.length;
+        }
+
+        @Override
+        boolean next() {
+            while (_next == _inner.length) {
+                if (!_outer.next()) {
+                    return false;
+                }
+                _next = 0;
+            }
+            setRows(_outer.row1(), _inner[_next]);
+            _next += 1;
+            return true;
+        }
+
+        /** The source of the outer rows. */
+        private final RowStream _outer;
+        /** The inner rows. */
+        private final int[] _inner;
+        /** Position in _inner of the row to pair next with the current
+         *  outer row. */
+        private int _next;
+    }
+
+    /** The pairs of rows with equal keys from a list of rows (the build
+     *  side, which is put in a hash table) and another RowStream (the
+     *  probe side).  The keys are the codes of the values in some of the
+     *  rows' columns (see Table.ValueList.getCode). */
+    static class HashJoin extends RowStream {
+        /** Pairs of rows from BUILDROWS and PROBE (which produces rows
+         *  of a single table) whose values in BUILDVALUES and PROBEVALUES
+         *  (respectively) are equal, where TOBUILDCODES[i] maps the codes
+         *  of PROBEVALUES[i] to those of BUILDVALUES[i] (see
+         *  Table.ValueList.translate).  The build side is the first
+         *  table iff BUILDFIRST. */
+        HashJoin(Table.ValueList[] buildValues, int[] buildRows,
+                 Table.ValueList[] probeValues, RowStream probe,
+                 int[][] toBuildCodes, boolean buildFirst) {
+            _buildValues = buildValues;
+            _buildRows = buildRows;
+            _probeValues = probeValues;
+            _probe = probe;
+            _toBuildCodes = toBuildCodes;
+            _buildFirst = buildFirst;
+            _key = new int[buildValues.length];
+
+            int n = buildRows.length;
+            _mask = Integer.highestOneBit(Math.max(1, 2 * n - 1)) * 2 - 1;
+            _heads = new int[_mask + 1];
+            Arrays.fill(_heads, -1);
+            _chain = new int[n];
+            for (int i = 0; i < n; i += 1) {
+                for (int k = 0; k < _key.length; k += 1) {
+                    _key[k] = buildValues[k].getCode(buildRows[i]);
+                }
+                int slot = Arrays.hashCode(_key) & _mask;
+                _chain[i] = _heads[slot];
+                _heads[slot] = i;
+            }
+            _next = -1;
+        }
+
+        @Override
+        boolean next() {
+            while (true) {
+                while (_next != -1) {
+                    int b = _buildRows[_next];
+                    _next = _chain[_next];
+                    if (matches(b)) {
+                        int p = _probe.row1();
+                        if (_buildFirst) {
+                            setRows(b, p);
+                        } else {
+                            setRows(p, b);
+                        }
+                        return true;
+                    }
+                }
+                if (!nextProbe()) {
+                    return false;
+                }
+            }
+        }
+
+        /** Advance to the next probe row that might have a match,
+         *  setting _key to its key and _next to the first build row in
+         *  its hash chain.  Return false if there are no more probe
+         *  rows. */
+        private boolean nextProbe() {
+        probing:
+            while (_probe.next()) {
+                int p = _probe.row1();
+                for (int k = 0; k < _key.length; k += 1) {
+                    _key[k] = _toBuildCodes[k][_probeValues[k].getCode(p)];
+                    if (_key[k] == -1) {
+                        continue probing;
+                    }
+                }
+                _next = _heads[Arrays.hashCode(_key) & _mask];
+                return true;
+            }
+            return false;
+        }
+
+        /** Return true iff build row B has key _key. */
+        private boolean matches(int b) {
+            for (int k = 0; k < _key.length; k += 1) {
+                if (_buildValues[k].getCode(b) != _key[k]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** The values of the key columns on the build side. */
+        private final Table.ValueList[] _buildValues;
+        /** The build rows. */
+        private final int[] _buildRows;
+        /** The values of the key columns on the probe side. */
+        private final Table.ValueList[] _probeValues;
+        /** The source of the probe rows. */
+        private final RowStream _probe;
+        /** Maps from probe-side codes to build-side codes. */
+        private final int[][] _toBuildCodes;
+        /** True iff the build side is the first table. */
+        private final boolean _buildFirst;
+        /** The hash table: _heads[h] is the position in _buildRows of
+         *  the first row whose key hashes to h (masked by _mask), or -1,
+         *  and _chain[i] that of the next row after _buildRows[i] with
+         *  the same masked hash. */
+        private final int[] _heads, _chain;
+        /** Mask selecting a slot of _heads from a hash. */
+        private final int _mask;
+        /** The key of the current probe row, as build-side codes. */
+        private final int[] _key;
+        /** The position in _buildRows of the next candidate match for
+         *  the current probe row, or -1. */
+        private int _next;
+    }
+}
@@ -0,0 +1,101 @@
+package db61b;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** A server that accepts clients on a port of the local host and runs a
+ *  session (see Main.runSession) for each, reading commands from the
+ *  client and sending back the prompts and results.  All sessions
+ *  share one Database, which handles concurrent use (see Database).
+ *  Each session has its own CommandInterpreter and runs on its own
+ *  thread: a virtual thread if the Java runtime provides them, so that
+ *  many idle sessions cost little, and otherwise a thread from a pool.
+ *  @author
+ */
+class Server implements Closeable {
+
+    /** A server for DATABASE listening on PORT of the local host, or on
+     *  any free port if PORT is 0. */
+    Server(int port, Database database) throws IOException {
+        _socket = new ServerSocket(port, BACKLOG,
+                                   InetAddress.getLoopbackAddress());
+        _database = database;
+        _sessions = newSessionExecutor();
+    }
+
+    /** Return the port on which I listen. */
+    int port() {
+        return _socket.getLocalPort();
+    }
+
+    /** Accept clients and start a session for each until I am
+     *  closed. */
+    void serve() throws IOException {
+        try {
+            while (true) {
+                Socket client = _socket.accept();
+                _sessions.execute(() -> session(client));
+            }
+        } catch (SocketException e) {
+            if (!_socket.isClosed()) {
+                throw e;
+            }
+        }
+    }
+
+    /** Stop accepting clients.  Sessions in progress continue until
+     *  their clients quit or disconnect. */
+    @Override
+    public void close() throws IOException {
+        _socket.close();
+        _sessions.shutdown();
+    }
+
+    /** Run a session for CLIENT, closing its connection at the end. */
+    private void session(Socket client) {
+        try (client) {
+            Scanner input = new Scanner(client.getInputStream(),
+                                        StandardCharsets.UTF_8);
+            PrintStream output =
+                new PrintStream(new BufferedOutputStream(
+                                    client.getOutputStream()),
+                                false, StandardCharsets.UTF_8);
+            Main.runSession(input, output, _database);
+        } catch (IOException e) {
+            /* The client has gone: nothing more to do. */
+        }
+    }
+
+    /** Return an executor that runs each task on a new virtual thread,
+     *  if the runtime supports them, and otherwise on a pooled thread. */
+    private static ExecutorService newSessionExecutor() {
+        try {
+            Method factory =
+                Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /** Maximum number of clients waiting to be accepted. */
+    private static final int BACKLOG = 128;
+
+    /** The socket on which clients connect. */
+    private final ServerSocket _socket;
+    /** The database shared by all sessions. */
+    private final Database _database;
+    /** Runs the sessions. */
+    private final ExecutorService _sessions;
+}
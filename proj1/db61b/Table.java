@@ -7,13 +7,33 @@
 // solutions.
 package db61b;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static db61b.Utils.*;
 
@@ -30,15 +50,9 @@ class Table {
         _size = 0;
         _rowSize = columnTitles.length;
 
-        for (int i = columnTitles.length - 1; i >= 1; i -= 1) {
-            for (int j = i - 1; j >= 0; j -= 1) {
-                if (columnTitles[i].equals(columnTitles[j])) {
-                    throw error("duplicate column name: %s",
-                                columnTitles[i]);
-                }
-            }
-        }
+        checkTitles(columnTitles);
         _titles = columnTitles;
+        _rowBuffer = new String[_rowSize];
         _columns = new ValueList[_rowSize];
         for (int c = 0; c < _rowSize; c++) {
             _columns[c] = new ValueList();
@@ -50,6 +64,18 @@ class Table {
         this(columnTitles.toArray(new String[columnTitles.size()]));
     }
 
+    /** Check that COLUMNTITLES contains no duplicate names. */
+    static void checkTitles(String... columnTitles) {
+        for (int i = columnTitles.length - 1; i >= 1; i -= 1) {
+            for (int j = i - 1; j >= 0; j -= 1) {
+                if (columnTitles[i].equals(columnTitles[j])) {
+                    throw error("duplicate column name: %s",
+                                columnTitles[i]);
+                }
+            }
+        }
+    }
+
     /** Return the number of columns in this table. */
     public int columns() {
         return _rowSize;
@@ -90,23 +116,30 @@ class Table {
      *  row already exists.  Return true if anything was added,
      *  false otherwise. */
     public boolean add(String[] values) {
-        /* if table is empty */
-        if (_columns[0].size() == 0) {
-            addUniqueRow(values);
-            positionNewRow(size() -1);
-            return true;
-        }
-        /* have at least 1 row */
-        for (int r = 0; r < size(); r++) {
-            if (identicalRow(values, r)) {
-                return false;
-            }
+        if (containsRow(values)) {
+            return false;
         }
         addUniqueRow(values);
-        positionNewRow(size() -1);
-        //determine the position of the row in the ArrayList
+        positionNewRow(size() - 1);
         return true;
     }
+
+    /** Return true iff some row of mine is equal to VALUES.  Only the
+     *  rows whose hash (see rowHash) matches that of VALUES are
+     *  compared, so this takes constant time on average. */
+    public boolean containsRow(String[] values) {
+        ArrayList<Integer> bucket = rowHashes().get(rowHash(values));
+        if (bucket == null) {
+            return false;
+        }
+        for (int i = 0; i < bucket.size(); i += 1) {
+            if (identicalRow(values, bucket.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /** Compares a string[] VALUES against _column[R][k] for k between 0 and rowSize */
     public boolean identicalRow(String[] values, int r) {
         for (int c = 0; c < _columns.length; c++) {
@@ -116,26 +149,365 @@ class Table {
         }
         return true;
     }
+
     /** Adds a new unique row of values */
     public void addUniqueRow(String[] values) {
         for (int c = 0; c < _columns.length; c++) {
             _columns[c].add(values[c]);
         }
+        recordHash(rowHash(values), _size);
+        for (int c : _columnIndexes.keySet()) {
+            indexValue(_columnIndexes.get(c), values[c], _size);
+        }
         _size += 1;
+        _version = nextVersion();
     }
 
-    /** repositions new row in the index ArrayList to keep the rows sorted. */
-    public void positionNewRow(int r) {
-        if (_index.size() == 0) {
-            _index.add(r);
+    /** Return a number identifying my current contents.  It changes
+     *  whenever rows are added to me, and no two tables (nor two states
+     *  of the same table) ever have the same version, so that a result
+     *  computed from a table is still valid exactly when that table's
+     *  version is unchanged. */
+    long version() {
+        return _version;
+    }
+
+    /** Return a number identifying THIS, different for every Table. */
+    long serial() {
+        return _serial;
+    }
+
+    /** Return a version number not returned before. */
+    private static long nextVersion() {
+        return _versions.incrementAndGet();
+    }
+
+    /** Create an index on my column named COLUMN, which select uses to
+     *  find the rows that satisfy conditions comparing that column with
+     *  a literal without examining every row.  The index is kept up to
+     *  date as rows are added.  Does nothing if the index already
+     *  exists. */
+    void createIndex(String column) {
+        int c = findColumn(column);
+        if (c == -1) {
+            throw error("unknown column: %s", column);
+        }
+        if (!_columnIndexes.containsKey(c)) {
+            _columnIndexes.put(c, buildColumnIndex(c));
+        }
+    }
+
+    /** Return true iff my column number COL has an index. */
+    boolean hasIndex(int col) {
+        return _columnIndexes.containsKey(col);
+    }
+
+    /** Return a new index of column number COL (see _columnIndexes). */
+    private ColumnIndex buildColumnIndex(int col) {
+        ColumnIndex index = new ColumnIndex();
+        for (int r = 0; r < _size; r += 1) {
+            indexValue(index, _columns[col].get(r), r);
+        }
+        return index;
+    }
+
+    /** Record in INDEX that row ROW has value VALUE. */
+    private static void indexValue(ColumnIndex index, String value, int row) {
+        ArrayList<Integer> rows = index.get(value);
+        if (rows == null) {
+            rows = new ArrayList<>(1);
+            index.put(value, rows);
+        }
+        rows.add(row);
+    }
+
+    /** Return the numbers of the rows that may satisfy CONDITIONS, as
+     *  determined from my column indexes, or null if none of CONDITIONS
+     *  compares an indexed column of mine with a literal, in which case
+     *  all rows must be examined.  An equality condition is preferred
+     *  to a range condition.  The rows are in no particular order, and
+     *  the caller must still test them against CONDITIONS. */
+    private int[] indexedRows(List<Condition> conditions) {
+        SortedMap<String, ArrayList<Integer>> best;
+        best = null;
+        for (Condition cond : conditions) {
+            Column col = cond.getColumn();
+            String lit = cond.getLiteral();
+            if (lit == null || col.getTable() != this
+                || !hasIndex(col.getColumnNumber())) {
+                continue;
+            }
+            ColumnIndex index = _columnIndexes.get(col.getColumnNumber());
+            SortedMap<String, ArrayList<Integer>> range;
+            switch (cond.getRelation()) {
+            case "=":
+                range = index.subMap(lit, true, lit, true);
+                break;
+            case "<":
+                range = index.headMap(lit, false);
+                break;
+            case "<=":
+                range = index.headMap(lit, true);
+                break;
+            case ">":
+                range = index.tailMap(lit, false);
+                break;
+            case ">=":
+                range = index.tailMap(lit, true);
+                break;
+            default:
+                continue;
+            }
+            if (cond.getRelation().equals("=")) {
+                best = range;
+                break;
+            } else if (best == null) {
+                best = range;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        int n;
+        n = 0;
+        for (ArrayList<Integer> rows : best.values()) {
+            n += rows.size();
+        }
+        int[] result = new int[n];
+        n = 0;
+        for (ArrayList<Integer> rows : best.values()) {
+            for (int r : rows) {
+                result[n] = r;
+                n += 1;
+            }
+        }
+        return result;
+    }
+
+    /** Add a row whose column values are VALUES to the end of my
+     *  columns without checking for duplicates or keeping the rows
+     *  sorted.  This is for adding many rows at once: after the last
+     *  of a sequence of calls to bulkAdd, and before any other use of
+     *  THIS, the caller must call endBulkAdd. */
+    void bulkAdd(String[] values) {
+        for (int c = 0; c < _columns.length; c += 1) {
+            _columns[c].add(values[c]);
+        }
+        _size += 1;
+        _version = nextVersion();
+    }
+
+    /** Add a row whose column values are extracted by COLUMNS from row
+     *  ROW of the single table they select from, as for bulkAdd. */
+    void bulkAdd(List<Column> columns, int row) {
+        bulkAdd(columns, row, row);
+    }
+
+    /** Add a row whose column values are extracted by COLUMNS from rows
+     *  ROW1 and ROW2 of the first and second tables they select from,
+     *  as for bulkAdd. */
+    void bulkAdd(List<Column> columns, int row1, int row2) {
+        String[] values = _rowBuffer;
+        for (int i = 0; i < values.length; i += 1) {
+            values[i] = columns.get(i).getFrom(row1, row2);
+        }
+        bulkAdd(values);
+    }
+
+    /** Finish a sequence of calls to bulkAdd by sorting all my rows with
+     *  a single sort, discarding duplicates (which are adjacent after
+     *  sorting), and rebuilding my columns in sorted order.  This takes
+     *  O(N log N) time for N rows. */
+    void endBulkAdd() {
+        int[] rows = new int[_size];
+        for (int r = 0; r < _size; r += 1) {
+            rows[r] = r;
+        }
+        prepare();
+        RowIndex.sort(rows, this::compareRows);
+
+        int n, prev;
+        n = 0;
+        prev = -1;
+        for (int r : rows) {
+            if (prev == -1 || compareRows(prev, r) != 0) {
+                rows[n] = r;
+                n += 1;
+            }
+            prev = r;
+        }
+        for (ValueList column : _columns) {
+            column.retain(rows, n);
+        }
+
+        _size = n;
+        _rowHashes = null;
+        _index.clear();
+        for (int r = 0; r < _size; r += 1) {
+            _index.append(r);
+        }
+        for (int c : _columnIndexes.keySet()) {
+            _columnIndexes.put(c, buildColumnIndex(c));
+        }
+    }
+
+    /** Acquire a read lock on THIS, waiting while another thread holds
+     *  its write lock.  Many threads may hold read locks at once, and
+     *  may then do anything that does not add rows to THIS (such as
+     *  select, print, or writeTable).  Since selecting requires my
+     *  columns to be prepared (see prepare), this first prepares them,
+     *  under the write lock, if rows have been added since they were
+     *  last prepared. */
+    void readLock() {
+        _lock.readLock().lock();
+        if (isPrepared()) {
             return;
         }
-        for (int i = 0; i < _index.size(); i++) {
-            if (compareRows(r,_index.get(i)) < 0) {
-                _index.add(i, r);
-                return;
+        _lock.readLock().unlock();
+        _lock.writeLock().lock();
+        try {
+            prepare();
+            _lock.readLock().lock();
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /** Release a read lock acquired by readLock. */
+    void readUnlock() {
+        _lock.readLock().unlock();
+    }
+
+    /** Acquire the write lock on THIS, waiting while any other thread
+     *  holds a read or write lock.  Only the holder of the write lock
+     *  may add rows to THIS or create indexes on it. */
+    void writeLock() {
+        _lock.writeLock().lock();
+    }
+
+    /** Acquire the write lock on THIS if no other thread holds a lock on
+     *  it, and return true iff it was acquired. */
+    boolean tryWriteLock() {
+        return _lock.writeLock().tryLock();
+    }
+
+    /** Release the write lock acquired by writeLock or tryWriteLock. */
+    void writeUnlock() {
+        _lock.writeLock().unlock();
+    }
+
+    /** Acquire read locks on all of TABLES, in a fixed global order so
+     *  that threads locking several tables cannot deadlock. */
+    static void readLock(Table... tables) {
+        for (Table table : lockOrder(tables)) {
+            table.readLock();
+        }
+    }
+
+    /** Release the read locks on TABLES acquired by readLock(TABLES). */
+    static void readUnlock(Table... tables) {
+        for (Table table : lockOrder(tables)) {
+            table.readUnlock();
+        }
+    }
+
+    /** Return the distinct members of TABLES, in the order in which
+     *  they are locked. */
+    private static Table[] lockOrder(Table... tables) {
+        Table[] result = tables.clone();
+        Arrays.sort(result, (t0, t1) -> Long.compare(t0._serial, t1._serial));
+        int n;
+        n = 0;
+        for (Table table : result) {
+            if (n == 0 || result[n - 1] != table) {
+                result[n] = table;
+                n += 1;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    /** Return true iff my columns are prepared (see prepare). */
+    private boolean isPrepared() {
+        for (ValueList column : _columns) {
+            if (!column.isRanked()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Prepare my columns for comparing values by their dictionary codes
+     *  (see ValueList.rank).  Should be called before operations that
+     *  compare many of my values, such as sorting or select.  Values
+     *  added afterwards are still compared correctly, but more slowly,
+     *  until the next call. */
+    void prepare() {
+        for (ValueList column : _columns) {
+            column.rank();
+        }
+    }
+
+    /** Return a rough estimate of the memory used by THIS, in bytes. */
+    long estimatedBytes() {
+        long bytes = (long) _size * ROW_BYTES;
+        for (ValueList column : _columns) {
+            bytes += column.estimatedBytes();
+        }
+        return bytes;
+    }
+
+    /** Return the values in my column number COL. */
+    ValueList values(int col) {
+        return _columns[col];
+    }
+
+    /** Return a hash of the row whose column values are VALUES, combined
+     *  from the hashes of the individual values. */
+    private int rowHash(String[] values) {
+        int hash = 1;
+        for (int c = 0; c < _rowSize; c += 1) {
+            hash = 31 * hash + values[c].hashCode();
+        }
+        return hash;
+    }
+
+    /** Return the hash of my row number ROW, as for rowHash(String[]). */
+    private int rowHash(int row) {
+        int hash = 1;
+        for (int c = 0; c < _rowSize; c += 1) {
+            hash = 31 * hash + _columns[c].get(row).hashCode();
+        }
+        return hash;
+    }
+
+    /** Return _rowHashes, first building it if necessary. */
+    private HashMap<Integer, ArrayList<Integer>> rowHashes() {
+        if (_rowHashes == null) {
+            _rowHashes = new HashMap<>();
+            for (int r = 0; r < _size; r += 1) {
+                recordHash(rowHash(r), r);
             }
         }
+        return _rowHashes;
+    }
+
+    /** Record that my row number ROW has hash value HASH, unless
+     *  _rowHashes has not been built yet. */
+    private void recordHash(int hash, int row) {
+        if (_rowHashes == null) {
+            return;
+        }
+        ArrayList<Integer> bucket = _rowHashes.get(hash);
+        if (bucket == null) {
+            bucket = new ArrayList<>(1);
+            _rowHashes.put(hash, bucket);
+        }
+        bucket.add(row);
+    }
+
+    /** Add row R to the index that keeps the rows sorted. */
+    public void positionNewRow(int r) {
         _index.add(r);
     }
 
@@ -152,122 +524,441 @@ class Table {
         return add(values);
     }
 
+    /** Add a new row whose column values are extracted by COLUMNS from
+     *  row ROW of the single table they select from, if no equal row
+     *  already exists.  Return true if anything was added.  Unlike
+     *  add(List<Column>, Integer...), allocates nothing unless the row
+     *  is added. */
+    boolean add(List<Column> columns, int row) {
+        return add(columns, row, row);
+    }
+
+    /** Add a new row whose column values are extracted by COLUMNS from
+     *  rows ROW1 and ROW2 of the first and second tables they select
+     *  from, if no equal row already exists.  Return true if anything
+     *  was added.  Allocates nothing unless the row is added. */
+    boolean add(List<Column> columns, int row1, int row2) {
+        String[] values = _rowBuffer;
+        for (int i = 0; i < values.length; i += 1) {
+            values[i] = columns.get(i).getFrom(row1, row2);
+        }
+        return add(values);
+    }
+
     /** Read the contents of the file NAME.db, and return as a Table.
-     *  Format errors in the .db file cause a DBException. */
+     *  Format errors in the .db file cause a DBException.  The file may
+     *  be either text (see TableReader) or binary (see writeBinary). */
     static Table readTable(String name) {
-        BufferedReader input;
-        Table table;
-        input = null;
-        table = null;
         try {
-            input = new BufferedReader(new FileReader(name + ".db"));
-            String header = input.readLine();
-            String nextLine;
-            String[] nextRow;
-            if (header == null) {
-                throw error("missing header in DB file");
-            }
-            String[] columnNames = header.split(",");
-            // FILL IN
-            table = new Table(columnNames);
-            while ((nextLine = input.readLine()) != null) {
-                nextRow = nextLine.trim().split(",");
-                table.add(nextRow);
-            }
-
-        } catch (FileNotFoundException e) {
+            return readTable(Paths.get(name + ".db"));
+        } catch (NoSuchFileException e) {
             throw error("could not find %s.db", name);
         } catch (IOException e) {
             throw error("problem reading from %s.db", name);
-        } finally {
-            if (input != null) {
-                try {
-                    input.close();
-                } catch (IOException e) {
-                    /* Ignore IOException */
+        }
+    }
+
+    /** Read the contents of FILE, in either text or binary format, and
+     *  return as a Table. */
+    static Table readTable(Path file) throws IOException {
+        try (FileChannel input = FileChannel.open(file,
+                                                  StandardOpenOption.READ)) {
+            if (isBinary(input)) {
+                return readBinary(input);
+            }
+            return new TableReader(input).read();
+        }
+    }
+
+    /** Return the column titles of the table in FILE, in either text or
+     *  binary format, reading only as much of FILE as needed to find
+     *  them.  Format errors in the titles cause a DBException. */
+    static String[] readTitles(Path file) throws IOException {
+        try (FileChannel input = FileChannel.open(file,
+                                                  StandardOpenOption.READ)) {
+            if (!isBinary(input)) {
+                return new TableReader(input).readHeader();
+            }
+            ByteBuffer data = input.map(FileChannel.MapMode.READ_ONLY, 0,
+                                        Math.min(input.size(),
+                                                 Integer.MAX_VALUE));
+            try {
+                data.position(BINARY_MAGIC.length);
+                int columns = data.getInt();
+                data.getInt();
+                if (columns <= 0) {
+                    throw error("corrupt binary DB file");
+                }
+                String[] titles = new String[columns];
+                for (int c = 0; c < columns; c += 1) {
+                    titles[c] = readString(data);
+                }
+                return titles;
+            } catch (BufferUnderflowException | IllegalArgumentException
+                     | NegativeArraySizeException e) {
+                throw error("corrupt binary DB file");
+            }
+        }
+    }
+
+    /** Return true iff the file open on INPUT starts with BINARY_MAGIC. */
+    private static boolean isBinary(FileChannel input) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(BINARY_MAGIC.length);
+        while (magic.hasRemaining()
+               && input.read(magic, magic.position()) > 0) {
+            continue;
+        }
+        return Arrays.equals(magic.array(), BINARY_MAGIC);
+    }
+
+    /** Write my contents into the file NAME.db in binary format (see
+     *  writeBinary).  Any I/O errors cause a DBException. */
+    void writeBinaryTable(String name) {
+        try {
+            writeBinary(Paths.get(name + ".db"));
+        } catch (IOException e) {
+            throw error("trouble writing to %s.db", name);
+        }
+    }
+
+    /** Write my contents to FILE in binary columnar format, which
+     *  readTable reads back without parsing, sorting, or checking for
+     *  duplicates.  The format (all integers big-endian) is:
+     *      BINARY_MAGIC, the number of columns C, the number of rows N,
+     *      the C column titles,
+     *      for each column, its dictionary and statistics and the codes
+     *          of its N values (see ValueList.writeTo),
+     *      the N row numbers of _index, in order,
+     *      the number K of indexed columns (see createIndex), and their
+     *          K column numbers.
+     *  The indexes themselves are rebuilt when the table is read.  Files
+     *  written before indexed columns were recorded end after _index,
+     *  and are read as having none.  Strings are written as a length
+     *  followed by that many bytes of UTF-8. */
+    void writeBinary(Path file) throws IOException {
+        try (DataOutputStream output =
+             new DataOutputStream(new BufferedOutputStream(
+                 Files.newOutputStream(file), WRITE_BUFFER_SIZE))) {
+            output.write(BINARY_MAGIC);
+            output.writeInt(_rowSize);
+            output.writeInt(_size);
+            for (String title : _titles) {
+                writeString(output, title);
+            }
+            for (ValueList column : _columns) {
+                column.writeTo(output);
+            }
+            RowIndex.Cursor rows = _index.cursor();
+            while (rows.hasNext()) {
+                output.writeInt(rows.next());
+            }
+            output.writeInt(_columnIndexes.size());
+            for (int c : _columnIndexes.keySet()) {
+                output.writeInt(c);
+            }
+        }
+    }
+
+    /** Read and return a Table from the binary file open on INPUT (see
+     *  writeBinary). */
+    private static Table readBinary(FileChannel input) throws IOException {
+        if (input.size() > Integer.MAX_VALUE) {
+            throw error("binary DB file too large");
+        }
+        ByteBuffer data = input.map(FileChannel.MapMode.READ_ONLY, 0,
+                                    input.size());
+        try {
+            data.position(BINARY_MAGIC.length);
+            int columns = data.getInt();
+            int rows = data.getInt();
+            if (columns <= 0 || rows < 0) {
+                throw error("corrupt binary DB file");
+            }
+            String[] titles = new String[columns];
+            for (int c = 0; c < columns; c += 1) {
+                titles[c] = readString(data);
+            }
+            Table table = new Table(titles);
+            for (int c = 0; c < columns; c += 1) {
+                table._columns[c] = ValueList.readFrom(data, rows);
+            }
+            table._size = rows;
+            table._rowHashes = null;
+            for (int k = 0; k < rows; k += 1) {
+                int r = data.getInt();
+                if (r < 0 || r >= rows) {
+                    throw error("corrupt binary DB file");
                 }
+                table._index.append(r);
             }
+            if (data.hasRemaining()) {
+                int indexed = data.getInt();
+                for (int k = 0; k < indexed; k += 1) {
+                    int c = data.getInt();
+                    if (c < 0 || c >= columns) {
+                        throw error("corrupt binary DB file");
+                    }
+                    table._columnIndexes.put(c, table.buildColumnIndex(c));
+                }
+            }
+            return table;
+        } catch (BufferUnderflowException | IllegalArgumentException
+                 | IndexOutOfBoundsException e) {
+            throw error("corrupt binary DB file");
         }
-        return table;
+    }
+
+    /** Write S to OUTPUT as its length in bytes followed by its UTF-8
+     *  encoding. */
+    private static void writeString(DataOutputStream output, String s)
+        throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    /** Read and return a String written by writeString from INPUT. */
+    private static String readString(ByteBuffer input) {
+        byte[] bytes = new byte[input.getInt()];
+        input.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
     }
 
     /** Write the contents of TABLE into the file NAME.db. Any I/O errors
-     *  cause a DBException. */
+     *  cause a DBException.  Rows are written in sorted order, each
+     *  formatted into one reused buffer and passed through a large
+     *  output buffer, so that storing allocates nothing per row. */
     void writeTable(String name) {
-        PrintStream output;
-        output = null;
-        try {
-            String sep;
-            sep = "";
-            output = new PrintStream(name + ".db");
-            // FILL THIS IN
-            for (int i = 0; i < _titles.length; i++) {
-                if (i == 0) {
-                    sep += _titles[i];
-                } else {
-                    sep = sep + ","+ _titles[i];
+        try (Writer output =
+             new BufferedWriter(new OutputStreamWriter(
+                 new FileOutputStream(name + ".db"), StandardCharsets.UTF_8),
+                                WRITE_BUFFER_SIZE)) {
+            StringBuilder line = new StringBuilder();
+            for (int c = 0; c < _rowSize; c += 1) {
+                if (c > 0) {
+                    line.append(',');
                 }
+                line.append(_titles[c]);
             }
-            output.println(sep);
-            sep = "";
-            for (int r = 0; r < _columns[0].size(); r++) {
-                for (int c = 0; c < size(); c++) {
-                    if (c == 0) {
-                        sep += get(r, c);
-                    } else {
-                        sep = sep + "," + get(r,c);
+            line.append('\n');
+            char[] chars = writeLine(output, line, new char[line.length()]);
+            RowIndex.Cursor rows = _index.cursor();
+            while (rows.hasNext()) {
+                int r = rows.next();
+                line.setLength(0);
+                for (int c = 0; c < _rowSize; c += 1) {
+                    if (c > 0) {
+                        line.append(',');
                     }
+                    line.append(_columns[c].get(r));
                 }
-                output.println(sep);
-                sep = "";
+                line.append('\n');
+                chars = writeLine(output, line, chars);
             }
         } catch (IOException e) {
             throw error("trouble writing to %s.db", name);
-        } finally {
-            if (output != null) {
-                output.close();
-            }
         }
     }
 
+    /** Write the contents of LINE to OUTPUT, using CHARS as scratch
+     *  space if it is big enough, and return the (possibly new) scratch
+     *  space used. */
+    private static char[] writeLine(Writer output, StringBuilder line,
+                                    char[] chars) throws IOException {
+        int len = line.length();
+        if (len > chars.length) {
+            chars = new char[Math.max(len, 2 * chars.length)];
+        }
+        line.getChars(0, len, chars, 0);
+        output.write(chars, 0, len);
+        return chars;
+    }
+
     /** Print my contents on the standard output, separated by spaces
      *  and indented by two spaces. */
     void print() {
-        if (_size == 0) {
-            return;
-        }
-        String indent = "  ";
-        String start = "";
-        for (int r = 0; r < _size; r++) {
-            String beg = indent;
-            for (int c = 0; c < _columns.length; c++) {
-                beg = beg + _columns[c].get(_index.get(r)) + " ";
+        print(System.out);
+    }
+
+    /** Print my contents on OUT, as for print(). */
+    void print(PrintStream out) {
+        RowPrinter printer = new RowPrinter(out);
+        print(printer);
+        printer.flush();
+    }
+
+    /** Print my rows, in order, on PRINTER. */
+    void print(RowPrinter printer) {
+        RowIndex.Cursor rows = _index.cursor();
+        while (rows.hasNext()) {
+            int r = rows.next();
+            for (int c = 0; c < _columns.length; c += 1) {
+                printer.print(_columns[c].get(r));
             }
-            System.out.println(beg);
+            printer.endRow();
         }
     }
 
-
     /** Return a new Table whose columns are COLUMNNAMES, selected from
      *  rows of this table that satisfy CONDITIONS. */
     Table select(List<String> columnNames, List<Condition> conditions) {
         Table result = new Table(columnNames);
         List<Column> selectedColumns = createColumnsFromNames(columnNames, this);
-        if (conditions.size() == 0) {
-            for (int r = 0; r < size(); r++) {
+        prepare();
+        int[] rows = filter(conditions);
+        if (rows.length < PARALLEL_THRESHOLD) {
+            for (int r : rows) {
                 result.add(selectedColumns, r);
             }
         } else {
-            //case 2: single table with conditions
-            for (int r = 0; r < size(); r++) {
-                if (shouldAddRow(conditions, r)) {
-                    result.add(selectedColumns, r);
-                }
+            for (int r : rows) {
+                result.bulkAdd(selectedColumns, r);
             }
+            result.endBulkAdd();
+        }
+        return result;
+    }
+
+    /** Return a new Table whose columns are COLUMNNAMES, selected from
+     *  the rows of this table numbered FROM or more that satisfy
+     *  CONDITIONS.  Since rows added to a table are numbered after all
+     *  its existing rows, this is the part of select(COLUMNNAMES,
+     *  CONDITIONS) that comes from the rows added since I had FROM rows
+     *  (see View). */
+    Table select(List<String> columnNames, List<Condition> conditions,
+                 int from) {
+        Table result = new Table(columnNames);
+        List<Column> selectedColumns = createColumnsFromNames(columnNames, this);
+        prepare();
+        for (int r : filter(conditions, from)) {
+            result.add(selectedColumns, r);
         }
         return result;
     }
 
+    /** Return the numbers of my rows that satisfy CONDITIONS, all of
+     *  which must apply to this table alone.  When possible, the
+     *  candidate rows come from a column index (see indexedRows);
+     *  otherwise all rows are examined.  The conditions are tested most
+     *  selective first (see Condition.bySelectivity). */
+    int[] filter(List<Condition> conditions) {
+        return filter(conditions, indexedRows(conditions));
+    }
+
+    /** Return the numbers of my rows numbered FROM or more that satisfy
+     *  CONDITIONS, as for filter(CONDITIONS). */
+    int[] filter(List<Condition> conditions, int from) {
+        int[] candidates = indexedRows(conditions);
+        if (from == 0) {
+            return filter(conditions, candidates);
+        }
+        int n;
+        if (candidates == null) {
+            candidates = new int[Math.max(0, _size - from)];
+            for (n = 0; n < candidates.length; n += 1) {
+                candidates[n] = from + n;
+            }
+        } else {
+            n = 0;
+            for (int r : candidates) {
+                if (r >= from) {
+                    candidates[n] = r;
+                    n += 1;
+                }
+            }
+        }
+        return filter(conditions, Arrays.copyOf(candidates, n));
+    }
+
+    /** Return the numbers of my rows that satisfy CONDITIONS, as for
+     *  filter(CONDITIONS), given that the rows in CANDIDATES (or all my
+     *  rows, if it is null) include all of them. */
+    private int[] filter(List<Condition> conditions, int[] candidates) {
+        int[] rows = candidates;
+        if (rows == null) {
+            rows = new int[_size];
+            for (int r = 0; r < _size; r += 1) {
+                rows[r] = r;
+            }
+        }
+        if (conditions.size() == 0) {
+            return rows;
+        }
+        conditions = Condition.bySelectivity(conditions);
+        int n;
+        if (rows.length < PARALLEL_THRESHOLD) {
+            n = filter(conditions, rows, 0, rows.length);
+        } else {
+            for (Condition cond : conditions) {
+                cond.prepare();
+            }
+            int chunk = Math.max(MIN_CHUNK_SIZE,
+                                 rows.length / (4 * POOL.getParallelism()));
+            n = POOL.invoke(new FilterTask(conditions, rows, 0, rows.length,
+                                           chunk));
+        }
+        return n == rows.length ? rows : Arrays.copyOf(rows, n);
+    }
+
+    /** Move the rows in ROWS[LOW .. HIGH-1] that satisfy CONDITIONS to
+     *  the beginning of that range, keeping them in order, and return
+     *  their number. */
+    private int filter(List<Condition> conditions, int[] rows,
+                       int low, int high) {
+        int n = low;
+        for (int i = low; i < high; i += 1) {
+            if (shouldAddRow(conditions, rows[i])) {
+                rows[n] = rows[i];
+                n += 1;
+            }
+        }
+        return n - low;
+    }
+
+    /** The parallel form of filter(CONDITIONS, ROWS, LOW, HIGH): the
+     *  range is split in halves that are filtered concurrently until
+     *  they are no longer than a given chunk size, and the survivors of
+     *  the second half are then moved down to follow those of the
+     *  first. */
+    private class FilterTask extends RecursiveTask<Integer> {
+        /** A task filtering ROWS[LOW .. HIGH-1] by CONDITIONS, splitting
+         *  ranges longer than CHUNK. */
+        FilterTask(List<Condition> conditions, int[] rows, int low, int high,
+                   int chunk) {
+            _conditions = conditions;
+            _rows = rows;
+            _low = low;
+            _high = high;
+            _chunk = chunk;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (_high - _low <= _chunk) {
+                return filter(_conditions, _rows, _low, _high);
+            }
+            int mid = (_low + _high) >>> 1;
+            FilterTask left =
+                new FilterTask(_conditions, _rows, _low, mid, _chunk);
+            FilterTask right =
+                new FilterTask(_conditions, _rows, mid, _high, _chunk);
+            left.fork();
+            int n2 = right.compute();
+            int n1 = left.join();
+            System.arraycopy(_rows, mid, _rows, _low + n1, n2);
+            return n1 + n2;
+        }
+
+        /** The conditions to test. */
+        private final List<Condition> _conditions;
+        /** The rows being filtered. */
+        private final int[] _rows;
+        /** The range of _rows to filter. */
+        private final int _low, _high;
+        /** Longest range filtered without splitting. */
+        private final int _chunk;
+    }
+
     /** creates and return a list of column objects from tables. **/
     List<Column> createColumnsFromNames(List<String> columnNames, Table ... tables) {
         ArrayList<Column> columnObjects = new ArrayList<>();
@@ -279,8 +970,8 @@ class Table {
 
     /** Returns if a given columns satisfies all of the conditions */
     boolean shouldAddRow(List<Condition> conditions, int row) {
-        for (Condition cond: conditions) {
-            if (!cond.test(row)) {
+        for (int i = 0; i < conditions.size(); i += 1) {
+            if (!conditions.get(i).test(row)) {
                 return false;
             }
         }
@@ -289,7 +980,14 @@ class Table {
 
     /** Return a new Table whose columns are COLUMNNAMES, selected
      *  from pairs of rows from this table and from TABLE2 that match
-     *  on all columns with identical names and satisfy CONDITIONS. */
+     *  on all columns with identical names and satisfy CONDITIONS.
+     *  Conditions that involve only one of the tables are applied to
+     *  that table before the join, so that only the rows satisfying them
+     *  take part in it.  The join uses a merge of the two tables' indexes
+     *  when their common columns lead both tables (see mergeJoin), a
+     *  hash join otherwise, and a nested loop when there are no common
+     *  columns.  The remaining conditions are tested on each joined pair
+     *  of rows, most selective first. */
     Table select(Table table2, List<String> columnNames,
                  List<Condition> conditions) {
         Table result = new Table(columnNames);
@@ -299,29 +997,310 @@ class Table {
         List<Column> common2 = createColumnsFromNames(commonColumns, table2);
         //create columns from selected Column values
         List<Column> selectedColumns = createColumnsFromNames(columnNames, this, table2);
-        for (int r1 = 0; r1 < this.size(); r1 += 1) {
-            for (int r2 = 0; r2 < table2.size(); r2 += 1) {
-                //If there are common column names at all
-                if (commonColumns.size() > 0) {
-                    if (equijoin(common1, common2, r1, r2)) {
-                        if (conditions.size() == 0) {
-                            result.add(selectedColumns, r1, r2);
-                        } else if (Condition.test(conditions, r1, r2)) {
-                            result.add(selectedColumns, r1, r2);
-                        }
-                    }
-                } else {
-                    if (conditions.size() == 0) {
-                        result.add(selectedColumns, r1, r2);
-                    } else if (Condition.test(conditions, r1, r2)) {
+        prepare();
+        table2.prepare();
+
+        int[] rows1 = filter(conditionsOn(conditions, 1));
+        int[] rows2 = table2.filter(conditionsOn(conditions, 2));
+        List<Condition> joinConditions =
+            Condition.bySelectivity(conditionsOn(conditions, 3));
+
+        if (commonColumns.size() == 0) {
+            //no common columns: the join is a cross product
+            for (int r1 : rows1) {
+                for (int r2 : rows2) {
+                    if (Condition.test(joinConditions, r1, r2)) {
                         result.add(selectedColumns, r1, r2);
                     }
                 }
             }
+        } else if (hasKeyPrefix(commonColumns)
+                   && table2.hasKeyPrefix(commonColumns)) {
+            mergeJoin(table2, commonColumns.size(), selection(rows1),
+                      table2.selection(rows2), selectedColumns,
+                      joinConditions, result);
+        } else {
+            hashJoin(table2, common1, common2, rows1, rows2, selectedColumns,
+                     joinConditions, result);
+        }
+        return result;
+    }
+
+    /** Return the distinct tuples of values of the columns COLUMNNAMES
+     *  in my rows that satisfy CONDITIONS, in order: the rows of
+     *  select(COLUMNNAMES, CONDITIONS), produced on demand rather than
+     *  collected in a Table.  When the selected columns are my first
+     *  columns, in order, and no index applies to CONDITIONS, scanning my
+     *  rows in order produces the tuples already sorted, so that they
+     *  flow from me to the consumer one at a time; otherwise they are
+     *  sorted once all are known.  If LIMIT is not negative, only the
+     *  first LIMIT tuples are produced, and only that many are kept
+     *  while sorting (see TupleStream.TopN).  I must not change while
+     *  the result is in use. */
+    TupleStream stream(List<String> columnNames, List<Condition> conditions,
+                       int limit) {
+        checkTitles(columnNames.toArray(new String[columnNames.size()]));
+        List<Column> selectedColumns = createColumnsFromNames(columnNames, this);
+        prepare();
+        int[] candidates = indexedRows(conditions);
+        if (candidates == null && hasKeyPrefix(columnNames)) {
+            RowStream rows =
+                new RowStream.Filter(new RowStream.IndexScan(_index.cursor()),
+                                     conditions);
+            TupleStream tuples = new TupleStream.Distinct(
+                new TupleStream.Project(rows, selectedColumns));
+            if (limit < 0) {
+                return tuples;
+            }
+            return new TupleStream.Limit(tuples, 0, limit);
+        }
+        RowStream rows =
+            new RowStream.ArrayScan(filter(conditions, candidates));
+        return sort(new TupleStream.Project(rows, selectedColumns), limit);
+    }
+
+    /** Return a new Table whose columns are COLUMNNAMES, selected as
+     *  for select(TABLE2, COLUMNNAMES, CONDITIONS) from just those pairs
+     *  of rows that include a row of this table numbered FROM1 or more
+     *  or a row of TABLE2 numbered FROM2 or more: the part of the join
+     *  that comes from the rows added to either table since they had
+     *  FROM1 and FROM2 rows (see select(List, List, int)). */
+    Table select(Table table2, List<String> columnNames,
+                 List<Condition> conditions, int from1, int from2) {
+        Table result = new Table(columnNames);
+        List<Column> selectedColumns =
+            createColumnsFromNames(columnNames, this, table2);
+        prepare();
+        table2.prepare();
+
+        List<Condition> conditions1 = conditionsOn(conditions, 1);
+        List<Condition> conditions2 = conditionsOn(conditions, 2);
+        List<Condition> joinConditions = conditionsOn(conditions, 3);
+        RowStream[] deltas = {
+            pairs(table2, filter(conditions1, from1),
+                  table2.filter(conditions2), joinConditions),
+            pairs(table2, filter(conditions1),
+                  table2.filter(conditions2, from2), joinConditions),
+        };
+        for (RowStream pairs : deltas) {
+            while (pairs.next()) {
+                result.add(selectedColumns, pairs.row1(), pairs.row2());
+            }
+        }
+        return result;
+    }
+
+    /** Return the pairs of rows from ROWS1 of this table and ROWS2 of
+     *  TABLE2 that agree on the columns the two tables have in common
+     *  (all pairs, if there are none) and satisfy CONDITIONS. */
+    private RowStream pairs(Table table2, int[] rows1, int[] rows2,
+                            List<Condition> conditions) {
+        List<String> commonColumns = getCommonColumns(table2);
+        if (commonColumns.size() == 0) {
+            return new RowStream.Filter(
+                new RowStream.NestedLoopJoin(new RowStream.ArrayScan(rows1),
+                                             rows2),
+                conditions);
+        }
+        return hashJoin(createColumnsFromNames(commonColumns, this),
+                        createColumnsFromNames(commonColumns, table2),
+                        rows1, rows2, conditions);
+    }
+
+    /** Return the distinct tuples of the rows of select(TABLE2,
+     *  COLUMNNAMES, CONDITIONS), in order, produced on demand as for
+     *  stream(COLUMNNAMES, CONDITIONS, LIMIT).  The pairs of rows of the
+     *  join are found as they are needed (see hashJoin), and only the
+     *  projected tuples are collected, for sorting.  Neither table may
+     *  change while the result is in use. */
+    TupleStream stream(Table table2, List<String> columnNames,
+                       List<Condition> conditions, int limit) {
+        checkTitles(columnNames.toArray(new String[columnNames.size()]));
+        List<Column> selectedColumns =
+            createColumnsFromNames(columnNames, this, table2);
+        prepare();
+        table2.prepare();
+
+        int[] rows1 = filter(conditionsOn(conditions, 1));
+        int[] rows2 = table2.filter(conditionsOn(conditions, 2));
+        RowStream pairs =
+            pairs(table2, rows1, rows2, conditionsOn(conditions, 3));
+        return sort(new TupleStream.Project(pairs, selectedColumns), limit);
+    }
+
+    /** Return the distinct tuples of TUPLES in order, or only the first
+     *  LIMIT of them if LIMIT is not negative. */
+    private static TupleStream sort(TupleStream tuples, int limit) {
+        if (limit < 0) {
+            return new TupleStream.Sort(tuples);
+        }
+        return new TupleStream.TopN(tuples, limit);
+    }
+
+    /** Return the members of CONDITIONS that apply to exactly the
+     *  tables in TABLES (a bit mask, as for Condition.getTables). */
+    private static List<Condition> conditionsOn(List<Condition> conditions,
+                                                int tables) {
+        List<Condition> result = new ArrayList<>();
+        for (Condition cond : conditions) {
+            if (cond.getTables() == tables) {
+                result.add(cond);
+            }
+        }
+        return result;
+    }
+
+    /** Return an array whose Rth element is true iff row R is one of
+     *  ROWS, or null if ROWS contains all of my rows. */
+    private boolean[] selection(int[] rows) {
+        if (rows.length == _size) {
+            return null;
+        }
+        boolean[] result = new boolean[_size];
+        for (int r : rows) {
+            result[r] = true;
         }
         return result;
     }
 
+    /** Return true iff my first columns are those named NAMES, in the
+     *  same order, so that my rows are sorted primarily by those
+     *  columns. */
+    private boolean hasKeyPrefix(List<String> names) {
+        if (names.size() > _titles.length) {
+            return false;
+        }
+        for (int i = 0; i < names.size(); i += 1) {
+            if (!_titles[i].equals(names.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Add to RESULT the values of SELECTEDCOLUMNS from all pairs of rows
+     *  from this table and TABLE2 that agree on the first KEYLENGTH
+     *  columns of each and satisfy CONDITIONS, considering only the rows
+     *  R1 of this table and R2 of TABLE2 for which SELECTED1[R1] and
+     *  SELECTED2[R2] are true (all rows if either is null).  Requires that those
+     *  columns be all the common columns of the two tables, in the same
+     *  order (see hasKeyPrefix), so that both _indexes list the rows in
+     *  order of their keys.  The join then merges the two indexes in a
+     *  single pass, using no extra storage. */
+    private void mergeJoin(Table table2, int keyLength,
+                           boolean[] selected1, boolean[] selected2,
+                           List<Column> selectedColumns,
+                           List<Condition> conditions, Table result) {
+        RowIndex.Cursor left = _index.cursor();
+        RowIndex.Cursor right = table2._index.cursor();
+        RowIndex.Cursor group = table2._index.cursor();
+        while (left.hasNext() && right.hasNext()) {
+            int c = compareKeys(left.peek(), table2, right.peek(), keyLength);
+            if (c < 0) {
+                left.next();
+            } else if (c > 0) {
+                right.next();
+            } else {
+                int r1 = left.next();
+                group.moveTo(right);
+                while (group.hasNext()
+                       && compareKeys(r1, table2, group.peek(),
+                                      keyLength) == 0) {
+                    int r2 = group.next();
+                    if ((selected1 == null || selected1[r1])
+                        && (selected2 == null || selected2[r2])
+                        && Condition.test(conditions, r1, r2)) {
+                        result.add(selectedColumns, r1, r2);
+                    }
+                }
+                if (!left.hasNext()
+                    || compareKeys(left.peek(), this, r1, keyLength) != 0) {
+                    right.moveTo(group);
+                }
+            }
+        }
+    }
+
+    /** Return <0, 0, or >0 depending on whether the first KEYLENGTH
+     *  values of my row ROW1 are less than, equal to, or greater than
+     *  the first KEYLENGTH values of row ROW2 of TABLE2. */
+    private int compareKeys(int row1, Table table2, int row2, int keyLength) {
+        for (int i = 0; i < keyLength; i += 1) {
+            int c = _columns[i].get(row1).compareTo(table2._columns[i].get(row2));
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /** Add to RESULT the values of SELECTEDCOLUMNS from all pairs of rows
+     *  from this table and TABLE2, drawn from ROWS1 and ROWS2
+     *  respectively, that agree on COMMON1 and COMMON2 (respectively) and
+     *  satisfy CONDITIONS (see hashJoin(List, List, int[], int[],
+     *  List)). */
+    private void hashJoin(Table table2, List<Column> common1,
+                          List<Column> common2, int[] rows1, int[] rows2,
+                          List<Column> selectedColumns,
+                          List<Condition> conditions, Table result) {
+        RowStream pairs = hashJoin(common1, common2, rows1, rows2,
+                                   conditions);
+        if (rows1.length + rows2.length >= PARALLEL_THRESHOLD) {
+            while (pairs.next()) {
+                result.bulkAdd(selectedColumns, pairs.row1(), pairs.row2());
+            }
+            result.endBulkAdd();
+        } else {
+            while (pairs.next()) {
+                result.add(selectedColumns, pairs.row1(), pairs.row2());
+            }
+        }
+    }
+
+    /** Return the pairs of rows from ROWS1 and ROWS2 (of the tables of
+     *  COMMON1 and COMMON2 respectively) that agree on COMMON1 and
+     *  COMMON2 and satisfy CONDITIONS.  Builds a hash table of the
+     *  smaller set of rows, keyed on its common columns, and probes it
+     *  with each row of the other, so that this takes time roughly
+     *  proportional to the numbers of rows plus the number of matching
+     *  pairs.  With at least PARALLEL_THRESHOLD rows in all, the join is
+     *  done in parallel (see PartitionedJoin) before the first pair is
+     *  returned; otherwise pairs are found as they are requested. */
+    private static RowStream hashJoin(List<Column> common1,
+                                      List<Column> common2,
+                                      int[] rows1, int[] rows2,
+                                      List<Condition> conditions) {
+        boolean buildThis = rows1.length <= rows2.length;
+        List<Column> buildKey = buildThis ? common1 : common2;
+        List<Column> probeKey = buildThis ? common2 : common1;
+        int keyLength = buildKey.size();
+        ValueList[] buildValues = new ValueList[keyLength];
+        ValueList[] probeValues = new ValueList[keyLength];
+        int[][] toBuildCodes = new int[keyLength][];
+        for (int i = 0; i < keyLength; i += 1) {
+            buildValues[i] = buildKey.get(i).getValues();
+            probeValues[i] = probeKey.get(i).getValues();
+            toBuildCodes[i] = probeValues[i].translate(buildValues[i]);
+        }
+        int[] buildRows = buildThis ? rows1 : rows2;
+        int[] probeRows = buildThis ? rows2 : rows1;
+
+        if (buildRows.length + probeRows.length >= PARALLEL_THRESHOLD) {
+            for (Condition cond : conditions) {
+                cond.prepare();
+            }
+            return new RowStream.PairScan(
+                new PartitionedJoin(buildValues, probeValues, toBuildCodes,
+                                    conditions, buildThis, POOL)
+                .join(buildRows, probeRows));
+        }
+        return new RowStream.Filter(
+            new RowStream.HashJoin(buildValues, buildRows, probeValues,
+                                   new RowStream.ArrayScan(probeRows),
+                                   toBuildCodes, buildThis),
+            conditions);
+    }
+
     /** Adds a row from selected Columns applying CONDITIONS WHERE necessary, otherwise simply
      *  add the row. This is a helper method written to condense the code inside of two table
      *  select. It checks first if there are any conditions, if not, row is automatically added.
@@ -347,7 +1326,7 @@ class Table {
      *  the _index. */
     private int compareRows(int k0, int k1) {
         for (int i = 0; i < _columns.length; i += 1) {
-            int c = _columns[i].get(k0).compareTo(_columns[i].get(k1));
+            int c = _columns[i].compare(k0, k1);
             if (c != 0) {
                 return c;
             }
@@ -355,56 +1334,385 @@ class Table {
         return 0;
     }
 
-    /** Return true if the columns COMMON1 from ROW1 and COMMON2 from
-     *  ROW2 all have identical values.  Assumes that COMMON1 and
-     *  COMMON2 have the same number of elements and the same names,
-     *  that the columns in COMMON1 apply to this table, those in
-     *  COMMON2 to another, and that ROW1 and ROW2 are indices, respectively,
-     *  into those tables. */
-    private static boolean equijoin(List<Column> common1, List<Column> common2,
-                                    int row1, int row2) {
-        Column leftCol;
-        Column rightCol;
-        for (int i = 0; i < common1.size(); i++) {
-            leftCol = common1.get(i);
-            rightCol = common2.get(i);
-            if (!leftCol.getFrom(row1).equals(rightCol.getFrom(row2))) {
-                return false;
+    /** The values in one column of a Table, dictionary-encoded.  Each
+     *  distinct value in the column is stored once, in a dictionary,
+     *  and assigned an integer code (its position in the dictionary);
+     *  the column itself is an array of codes.  Thus columns with few
+     *  distinct values take little space, and two values from the same
+     *  column are equal iff their codes are.
+     *
+     *  Codes are assigned in order of first appearance, so they do not
+     *  reflect the order of the values.  For ordering, method rank
+     *  computes the position of each value in sorted order, after which
+     *  values may be compared by comparing those ranks.  Adding new
+     *  values to the dictionary does not change the relative order of
+     *  the old ones, so ranks remain usable for all values present at
+     *  the last call to rank; newer values are compared as strings. */
+    static class ValueList {
+
+        /** Return the number of values in THIS. */
+        int size() {
+            return _size;
+        }
+
+        /** Return the value at position ROW. */
+        String get(int row) {
+            return _dictionary.get(getCode(row));
+        }
+
+        /** Return the dictionary code of the value at position ROW. */
+        int getCode(int row) {
+            if (row < 0 || row >= _size) {
+                throw new IndexOutOfBoundsException();
             }
+            return _codes[row];
         }
-        return true;
+
+        /** Return the code for VALUE, or -1 if VALUE does not appear in
+         *  THIS. */
+        int codeOf(String value) {
+            Integer code = _codeOf.get(value);
+            return code == null ? -1 : code;
+        }
+
+        /** Return the fraction of my values V for which the outcome of
+         *  comparing V with VALUE is in MASK: bit 0, 1, or 2 of MASK
+         *  stands for V being less than, equal to, or greater than VALUE
+         *  (see Condition.relationMask).  Computed from the number of
+         *  occurrences of each distinct value, in time proportional to
+         *  the number of distinct values. */
+        double fraction(int mask, String value) {
+            if (_size == 0) {
+                return 0.0;
+            }
+            long n;
+            n = 0;
+            for (int c = 0; c < _dictionary.size(); c += 1) {
+                int cmp = Integer.signum(_dictionary.get(c).compareTo(value));
+                if (((mask >> (cmp + 1)) & 1) != 0) {
+                    n += _counts[c];
+                }
+            }
+            return (double) n / _size;
+        }
+
+        /** Return a rough estimate of the memory used by THIS, in
+         *  bytes. */
+        long estimatedBytes() {
+            return 4L * (_codes.length + _counts.length + _ranks.length
+                         + _sorted.length)
+                + _dictionaryBytes;
+        }
+
+        /** Return the number of distinct values in THIS. */
+        int distinct() {
+            return _dictionary.size();
+        }
+
+        /** Append VALUE. */
+        void add(String value) {
+            Integer code = _codeOf.get(value);
+            if (code == null) {
+                code = _dictionary.size();
+                _dictionary.add(value);
+                _codeOf.put(value, code);
+                _dictionaryBytes += VALUE_BYTES + 2L * value.length();
+                if (code == _counts.length) {
+                    _counts = Arrays.copyOf(_counts, 2 * _counts.length);
+                }
+            }
+            ensureCapacity(_size + 1);
+            _codes[_size] = code;
+            _counts[code] += 1;
+            _size += 1;
+        }
+
+        /** Make sure there is room for N values without reallocation. */
+        void ensureCapacity(int n) {
+            if (n > _codes.length) {
+                _codes = Arrays.copyOf(_codes, Math.max(n, 2 * _codes.length));
+            }
+        }
+
+        /** Replace my contents with the values at positions ROWS[0],
+         *  ROWS[1], ..., ROWS[N-1], in that order.  Requires that the
+         *  first N elements of ROWS be distinct. */
+        void retain(int[] rows, int n) {
+            int[] codes = new int[n];
+            Arrays.fill(_counts, 0);
+            for (int i = 0; i < n; i += 1) {
+                codes[i] = _codes[rows[i]];
+                _counts[codes[i]] += 1;
+            }
+            _codes = codes;
+            _size = n;
+        }
+
+        /** Write THIS to OUTPUT in binary form: the number of distinct
+         *  values D; for each code, its value and number of occurrences
+         *  (the column statistics used by fraction); the D codes in
+         *  order of value (so that reading need not sort them); and the
+         *  code of each of my values, in 1, 2, or 4 bytes, depending on
+         *  D. */
+        void writeTo(DataOutputStream output) throws IOException {
+            rank();
+            int n = _dictionary.size();
+            output.writeInt(n);
+            for (int c = 0; c < n; c += 1) {
+                writeString(output, _dictionary.get(c));
+                output.writeInt(_counts[c]);
+            }
+            for (int k = 0; k < n; k += 1) {
+                output.writeInt(_sorted[k]);
+            }
+            for (int r = 0; r < _size; r += 1) {
+                if (n <= BYTE_CODES) {
+                    output.writeByte(_codes[r]);
+                } else if (n <= SHORT_CODES) {
+                    output.writeShort(_codes[r]);
+                } else {
+                    output.writeInt(_codes[r]);
+                }
+            }
+        }
+
+        /** Read and return a ValueList of SIZE values written by writeTo
+         *  from INPUT. */
+        static ValueList readFrom(ByteBuffer input, int size) {
+            ValueList result = new ValueList();
+            int n = input.getInt();
+            result._counts = new int[Math.max(n, INITIAL_CAPACITY)];
+            for (int c = 0; c < n; c += 1) {
+                String value = readString(input);
+                result._dictionary.add(value);
+                result._codeOf.put(value, c);
+                result._dictionaryBytes += VALUE_BYTES + 2L * value.length();
+                result._counts[c] = input.getInt();
+            }
+            int[] sorted = new int[n];
+            int[] ranks = new int[n];
+            for (int k = 0; k < n; k += 1) {
+                sorted[k] = input.getInt();
+                ranks[sorted[k]] = k;
+            }
+            result._sorted = sorted;
+            result._ranks = ranks;
+            int[] codes = new int[Math.max(size, INITIAL_CAPACITY)];
+            for (int r = 0; r < size; r += 1) {
+                if (n <= BYTE_CODES) {
+                    codes[r] = input.get() & 0xff;
+                } else if (n <= SHORT_CODES) {
+                    codes[r] = input.getShort() & 0xffff;
+                } else {
+                    codes[r] = input.getInt();
+                }
+                if (codes[r] >= n) {
+                    throw error("corrupt binary DB file");
+                }
+            }
+            result._codes = codes;
+            result._size = size;
+            return result;
+        }
+
+        /** Return an array that maps each of my codes to the code of the
+         *  same value in OTHER, or to -1 if OTHER does not contain it. */
+        int[] translate(ValueList other) {
+            int[] result = new int[_dictionary.size()];
+            for (int c = 0; c < result.length; c += 1) {
+                result[c] = other.codeOf(_dictionary.get(c));
+            }
+            return result;
+        }
+
+        /** Return true iff the ranking computed by rank is up to
+         *  date. */
+        boolean isRanked() {
+            return _ranks.length == _dictionary.size();
+        }
+
+        /** Compute the rank (position in sorted order) of each value
+         *  in my dictionary, unless that is already up to date. */
+        void rank() {
+            int n = _dictionary.size();
+            if (_ranks.length == n) {
+                return;
+            }
+            int[] sorted = new int[n];
+            for (int c = 0; c < n; c += 1) {
+                sorted[c] = c;
+            }
+            RowIndex.sort(sorted,
+                          (c0, c1) -> _dictionary.get(c0)
+                                      .compareTo(_dictionary.get(c1)));
+            int[] ranks = new int[n];
+            for (int k = 0; k < n; k += 1) {
+                ranks[sorted[k]] = k;
+            }
+            _sorted = sorted;
+            _ranks = ranks;
+        }
+
+        /** Return a number identifying the ranking computed by the last
+         *  call to rank.  It changes whenever rank changes the
+         *  ranking. */
+        int rankVersion() {
+            return _ranks.length;
+        }
+
+        /** Return <0, 0, or >0 depending on whether the value at
+         *  position ROW0 is less than, equal to, or greater than that
+         *  at ROW1. */
+        int compare(int row0, int row1) {
+            int c0 = getCode(row0), c1 = getCode(row1);
+            if (c0 == c1) {
+                return 0;
+            } else if (c0 < _ranks.length && c1 < _ranks.length) {
+                return _ranks[c0] - _ranks[c1];
+            } else {
+                return _dictionary.get(c0).compareTo(_dictionary.get(c1));
+            }
+        }
+
+        /** Return a key for comparing VALUE with my values using
+         *  compareToKey.  The key is valid only as long as rankVersion()
+         *  is unchanged. */
+        int keyOf(String value) {
+            int lo = 0, hi = _sorted.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = _dictionary.get(_sorted[mid]).compareTo(value);
+                if (c == 0) {
+                    return 2 * mid;
+                } else if (c < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return 2 * lo - 1;
+        }
+
+        /** Return <0, 0, or >0 depending on whether the value at
+         *  position ROW is less than, equal to, or greater than VALUE,
+         *  given that KEY is keyOf(VALUE), computed since the last
+         *  change to rankVersion(). */
+        int compareToKey(int row, String value, int key) {
+            int code = getCode(row);
+            if (code < _ranks.length) {
+                return 2 * _ranks[code] - key;
+            } else {
+                return _dictionary.get(code).compareTo(value);
+            }
+        }
+
+        /** The dictionary: my distinct values, indexed by code. */
+        private final ArrayList<String> _dictionary = new ArrayList<>();
+        /** Maps each of my distinct values to its code. */
+        private final HashMap<String, Integer> _codeOf = new HashMap<>();
+        /** The codes of my values, in positions 0 .. _size-1. */
+        private int[] _codes = new int[INITIAL_CAPACITY];
+        /** Number of values in THIS. */
+        private int _size;
+        /** The number of occurrences of each code among my values. */
+        private int[] _counts = new int[INITIAL_CAPACITY];
+        /** Estimated memory used by my dictionary, in bytes. */
+        private long _dictionaryBytes;
+        /** The rank of each of the first _ranks.length codes, as of the
+         *  last call to rank. */
+        private int[] _ranks = new int[0];
+        /** The first _ranks.length codes in order of value (inverse of
+         *  _ranks). */
+        private int[] _sorted = new int[0];
+
+        /** Initial size of _codes. */
+        private static final int INITIAL_CAPACITY = 8;
+        /** Estimated memory used by a dictionary entry, apart from the
+         *  characters of its value: the String, its slot in _dictionary,
+         *  and its _codeOf entry. */
+        private static final long VALUE_BYTES = 96;
+        /** Largest numbers of distinct values whose codes writeTo writes
+         *  in one and two bytes, respectively. */
+        private static final int BYTE_CODES = 1 << 8, SHORT_CODES = 1 << 16;
     }
 
-    /** A class that is essentially ArrayList<String>.  For technical reasons,
-     *  we need to encapsulate ArrayList<String> like this because the
-     *  underlying design of Java does not properly distinguish between
-     *  different kinds of ArrayList at runtime (e.g., if you have a
-     *  variable of type Object that was created from an ArrayList, there is
-     *  no way to determine in general whether it is an ArrayList<String>,
-     *  ArrayList<Integer>, or ArrayList<Object>).  This leads to annoying
-     *  compiler warnings.  The trick of defining a new type avoids this
-     *  issue. */
-    private static class ValueList extends ArrayList<String> {
+    /** An index of one column: maps each value in the column to the
+     *  numbers of the rows having that value, in order of value.  (A
+     *  separate type avoids the compiler warnings that come from mixing
+     *  generic types with raw ones at runtime.) */
+    private static class ColumnIndex
+        extends TreeMap<String, ArrayList<Integer>> {
     }
 
+    /** The first bytes of a binary .db file (see writeBinary).  A text
+     *  .db file cannot start this way. */
+    private static final byte[] BINARY_MAGIC = {
+        0, 'D', 'B', '6', '1', 'B', 'C', 1
+    };
+
+    /** Estimated memory used per row apart from its values: its _index
+     *  node and its _rowHashes entry. */
+    private static final long ROW_BYTES = 96;
+
+    /** Size of the buffer used by writeTable. */
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
     /** My column titles. */
     private final String[] _titles;
     /** My columns. Row i consists of _columns[k].get(i) for all k. */
     private final ValueList[] _columns;
 
     /** Rows in the database are supposed to be sorted. To do so, we
-     *  have a list whose kth element is the index in each column
-     *  of the value of that column for the kth row in lexicographic order.
-     *  That is, the first row (smallest in lexicographic order)
-     *  is at position _index.get(0) in _columns[0], _columns[1], ...
-     *  and the kth row in lexicographic order in at position _index.get(k).
-     *  When a new row is inserted, insert its index at the appropriate
-     *  place in this list.
+     *  keep an index that holds the row numbers of all rows (that is,
+     *  the positions of their values in each column) ordered so that
+     *  traversing it visits the rows in lexicographic order.  When a new
+     *  row is inserted, its number is added to the index in its proper
+     *  place, which takes O(log N) time (see RowIndex).
      *  (Alternatively, we could simply keep each column in the proper order
      *  so that we would not need _index.  But that would mean that inserting
      *  a new row would require rearranging _rowSize lists (each list in
      *  _columns) rather than just one. */
-    private final ArrayList<Integer> _index = new ArrayList<>();
+    private final RowIndex _index = new RowIndex(this::compareRows);
+
+    /** Maps the hash (see rowHash) of each of my rows to the numbers of
+     *  the rows having that hash.  Used to reject duplicate rows without
+     *  scanning the whole table.  Null until first needed (see
+     *  rowHashes), so that tables that are loaded but never added to
+     *  need not hash their rows. */
+    private HashMap<Integer, ArrayList<Integer>> _rowHashes =
+        new HashMap<>();
+
+    /** Indexes on some of my columns, created by createIndex.  Maps
+     *  each column number to an index of that column. */
+    private final HashMap<Integer, ColumnIndex> _columnIndexes =
+        new HashMap<>();
+
+    /** Scratch space for the values of a row being added from other
+     *  tables' rows (see add(List<Column>, int, int)). */
+    private final String[] _rowBuffer;
+
+    /** Number of rows at and above which filter tests rows on several
+     *  threads, hashJoin joins on several threads, and select builds its
+     *  result with a single sort (see endBulkAdd) rather than row by
+     *  row.  Set by the system property
+     *  db61b.parallelThreshold. */
+    static final int PARALLEL_THRESHOLD =
+        Integer.getInteger("db61b.parallelThreshold", 1 << 15);
+    /** Smallest number of rows filtered by one task. */
+    private static final int MIN_CHUNK_SIZE = 1 << 12;
+    /** Threads used for parallel filtering. */
+    private static final ForkJoinPool POOL = ForkJoinPool.commonPool();
+
+    /** Source of version numbers (see version). */
+    private static final AtomicLong _versions = new AtomicLong();
+    /** My current version. */
+    private long _version = nextVersion();
+    /** A number distinguishing me from all other Tables, which orders
+     *  the acquisition of locks on several tables (see readLock). */
+    private final long _serial = nextVersion();
+    /** Controls concurrent access to me (see readLock and writeLock). */
+    private final ReentrantReadWriteLock _lock =
+        new ReentrantReadWriteLock();
 
     /** My number of rows (redundant, but convenient). */
     private int _size;
@@ -0,0 +1,177 @@
+package db61b;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import static db61b.Utils.*;
+
+/** Reads Tables from .db files.  The file is memory-mapped (in windows
+ *  of at most MAX_WINDOW bytes, so that files of any size may be read)
+ *  and scanned byte by byte for commas and ends of lines.  No line
+ *  Strings or intermediate arrays are created: the only objects made
+ *  per value are the Strings for the values themselves, which go
+ *  straight into the Table's column dictionaries (see Table.bulkAdd).
+ *  @author
+ */
+class TableReader {
+
+    /** A reader for the .db file open on CHANNEL. */
+    TableReader(FileChannel channel) throws IOException {
+        _channel = channel;
+        _fileSize = channel.size();
+        _windowStart = 0;
+        _pos = 0;
+        _field = new byte[INITIAL_FIELD_SIZE];
+    }
+
+    /** Read the header line of my file and return the column titles it
+     *  contains.  Format errors in the header cause a DBException. */
+    String[] readHeader() throws IOException {
+        if (!nextLine()) {
+            throw error("missing header in DB file");
+        }
+        int n = countFields(_lineStart, _lineEnd);
+        String[] titles = new String[n];
+        splitLine(_lineStart, _lineEnd, titles);
+        return titles;
+    }
+
+    /** Read the whole of my file, which must be positioned at its
+     *  start, and return its contents as a Table.  Format errors cause
+     *  a DBException. */
+    Table read() throws IOException {
+        Table table = new Table(readHeader());
+        readRows(table);
+        return table;
+    }
+
+    /** Read the remaining lines of my file, which must be positioned
+     *  after its header, as rows of TABLE.  Blank lines are ignored.
+     *  Format errors cause a DBException. */
+    void readRows(Table table) throws IOException {
+        String[] row = new String[table.columns()];
+        while (nextLine()) {
+            int start = _lineStart, end = _lineEnd;
+            while (start < end && _window.get(start) <= ' ') {
+                start += 1;
+            }
+            while (end > start && _window.get(end - 1) <= ' ') {
+                end -= 1;
+            }
+            if (start == end) {
+                continue;
+            }
+            if (countFields(start, end) != row.length) {
+                throw error("wrong number of values in DB file row");
+            }
+            splitLine(start, end, row);
+            table.bulkAdd(row);
+        }
+        table.endBulkAdd();
+    }
+
+    /** Advance to the next line of my file, setting _lineStart and
+     *  _lineEnd to its bounds in _window (excluding the line
+     *  terminator).  Return false if there are no more lines. */
+    private boolean nextLine() throws IOException {
+        if (_pos >= _fileSize) {
+            return false;
+        }
+        if (_window == null || _pos >= _windowStart + _window.limit()) {
+            map(_pos);
+        }
+        int start = (int) (_pos - _windowStart);
+        int end = start;
+        while (true) {
+            if (end == _window.limit()) {
+                if (_windowStart + end == _fileSize) {
+                    break;
+                }
+                if (start == 0) {
+                    throw error("line too long in DB file");
+                }
+                map(_windowStart + start);
+                end -= start;
+                start = 0;
+                continue;
+            }
+            if (_window.get(end) == '\n') {
+                break;
+            }
+            end += 1;
+        }
+        _pos = _windowStart + end + 1;
+        if (end > start && _window.get(end - 1) == '\r') {
+            end -= 1;
+        }
+        _lineStart = start;
+        _lineEnd = end;
+        return true;
+    }
+
+    /** Map the window of my file starting at file position START. */
+    private void map(long start) throws IOException {
+        long size = Math.min(MAX_WINDOW, _fileSize - start);
+        _window = _channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        _windowStart = start;
+    }
+
+    /** Return the number of comma-separated fields in _window[START ..
+     *  END-1]. */
+    private int countFields(int start, int end) {
+        int n = 1;
+        for (int i = start; i < end; i += 1) {
+            if (_window.get(i) == ',') {
+                n += 1;
+            }
+        }
+        return n;
+    }
+
+    /** Store the comma-separated fields of _window[START .. END-1] in
+     *  FIELDS, which must have exactly enough room for them. */
+    private void splitLine(int start, int end, String[] fields) {
+        int k = 0;
+        int fieldStart = start;
+        for (int i = start; i <= end; i += 1) {
+            if (i == end || _window.get(i) == ',') {
+                fields[k] = decode(fieldStart, i);
+                k += 1;
+                fieldStart = i + 1;
+            }
+        }
+    }
+
+    /** Return the String encoded (in UTF-8) by _window[START .. END-1]. */
+    private String decode(int start, int end) {
+        int len = end - start;
+        if (len > _field.length) {
+            _field = new byte[Math.max(len, 2 * _field.length)];
+        }
+        _window.get(start, _field, 0, len);
+        return new String(_field, 0, len, StandardCharsets.UTF_8);
+    }
+
+    /** Largest portion of a file mapped at once.  Lines must be shorter
+     *  than this. */
+    private static final long MAX_WINDOW = 1L << 28;
+    /** Initial size of _field. */
+    private static final int INITIAL_FIELD_SIZE = 64;
+
+    /** The file being read. */
+    private final FileChannel _channel;
+    /** The size of the file. */
+    private final long _fileSize;
+    /** The currently mapped portion of the file, or null if none. */
+    private MappedByteBuffer _window;
+    /** Position in the file of the start of _window. */
+    private long _windowStart;
+    /** Position in the file of the next unread byte. */
+    private long _pos;
+    /** Bounds in _window of the current line. */
+    private int _lineStart, _lineEnd;
+    /** Scratch space for decoding field values. */
+    private byte[] _field;
+}
@@ -13,25 +13,28 @@ import static db61b.Utils.*;
 class Tokenizer {
 
     /** Text of regular expressions that represent literals (possibly
-     *  unterminated), identifiers, and comments (possibly
+     *  unterminated), identifiers, numbers, and comments (possibly
      *  unterminated). */
     private static final String
         LITERAL_TEXT = "'(?:[^,'\n\r]*)'?",
         IDENTIFIER_TEXT = "[\\p{Alpha}_]\\w*",
+        NUMBER_TEXT = "\\d+",
         COMMENT_TEXT = "(?:/\\*.*?\\*/|/\\*.*)";
     /** Matches potential tokens, including valid or unterminated
-     *  literals, valid or unterminated comments, identifiers,
+     *  literals, valid or unterminated comments, identifiers, numbers,
      *  relation symbols (=, <, <=, >=, and !=), end-of-line
      *  sequences, or other single characters.  The pattern matches a
      *  prefix of any string. */
     private static final Pattern
-        TOKEN_PATN = mkPatn("(?s)[<>!]?=|%s|%s|%s|\r?\n|\\S",
-                            LITERAL_TEXT, IDENTIFIER_TEXT, COMMENT_TEXT);
+        TOKEN_PATN = mkPatn("(?s)[<>!]?=|%s|%s|%s|%s|\r?\n|\\S",
+                            LITERAL_TEXT, IDENTIFIER_TEXT, NUMBER_TEXT,
+                            COMMENT_TEXT);
 
     /** Patterns matching specific kinds of token.  These are intended
      *  to be used with methods such as CommandInterpreter.name. */
     static final Pattern
         IDENTIFIER = mkPatn(IDENTIFIER_TEXT),
+        NUMBER = mkPatn(NUMBER_TEXT),
         LITERAL = mkPatn("'.*"),
         RELATION = mkPatn("[<>!]?=|[<>]");
 
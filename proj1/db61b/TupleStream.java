@@ -0,0 +1,266 @@
+package db61b;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+/** A sequence of tuples of values produced one at a time on demand:
+ *  the final stages of the plan for a select (see Table.stream), which
+ *  turn the rows produced by a RowStream into the values of the
+ *  selected columns, and put them in order without duplicates.
+ *  @author
+ */
+abstract class TupleStream {
+
+    /** Advance to my next tuple, returning false if there are no more.
+     *  Must be called before the first tuple is available. */
+    abstract boolean next();
+
+    /** Return my current tuple.  The array may be reused for later
+     *  tuples, so it is valid only until the next call to next(), and
+     *  must not be modified. */
+    abstract String[] values();
+
+    /** Return <0, 0, or >0 depending on whether tuple VALUES0 is less
+     *  than, equal to, or greater than VALUES1 in the lexicographic
+     *  order in which rows are printed. */
+    static int compare(String[] values0, String[] values1) {
+        for (int c = 0; c < values0.length; c += 1) {
+            int cmp = values0[c].compareTo(values1[c]);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /** The values of some columns in each row of a RowStream. */
+    static class Project extends TupleStream {
+        /** The values of COLUMNS in the rows of INPUT. */
+        Project(RowStream input, List<Column> columns) {
+            _input = input;
+            _columns = columns.toArray(new Column[columns.size()]);
+            _values = new String[_columns.length];
+        }
+
+        @Override
+        boolean next() {
+            if (!_input.next()) {
+                return false;
+            }
+            int row1 = _input.row1(), row2 = _input.row2();
+            for (int i = 0; i < _columns.length; i += 1) {
+                _values[i] = _columns[i].getFrom(row1, row2);
+            }
+            return true;
+        }
+
+        @Override
+        String[] values() {
+            return _values;
+        }
+
+        /** The source of my rows. */
+        private final RowStream _input;
+        /** The columns projected. */
+        private final Column[] _columns;
+        /** The current tuple. */
+        private final String[] _values;
+    }
+
+    /** The tuples of another TupleStream, which must be in order, with
+     *  duplicates (which are adjacent) removed. */
+    static class Distinct extends TupleStream {
+        /** The distinct tuples of INPUT, which must be in order. */
+        Distinct(TupleStream input) {
+            _input = input;
+        }
+
+        @Override
+        boolean next() {
+            while (_input.next()) {
+                String[] values = _input.values();
+                if (_previous == null || compare(_previous, values) != 0) {
+                    if (_previous == null) {
+                        _previous = values.clone();
+                    } else {
+                        System.arraycopy(values, 0, _previous, 0,
+                                         values.length);
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        String[] values() {
+            return _previous;
+        }
+
+        /** The source of my tuples. */
+        private final TupleStream _input;
+        /** The last tuple produced, or null if none. */
+        private String[] _previous;
+    }
+
+    /** The distinct tuples of another TupleStream, in order.  This is
+     *  the one stage that must see all of its input before producing
+     *  anything: the first call to next collects the input tuples,
+     *  sorts them, and discards duplicates. */
+    static class Sort extends TupleStream {
+        /** The distinct tuples of INPUT, in order. */
+        Sort(TupleStream input) {
+            _input = input;
+        }
+
+        @Override
+        boolean next() {
+            if (_tuples == null) {
+                _tuples = sort(_input);
+                _next = 0;
+            }
+            if (_next == _tuples.length) {
+                return false;
+            }
+            _current = _tuples[_next];
+            _tuples[_next] = null;
+            _next += 1;
+            return true;
+        }
+
+        @Override
+        String[] values() {
+            return _current;
+        }
+
+        /** Return the distinct tuples of INPUT, in order. */
+        private static String[][] sort(TupleStream input) {
+            ArrayList<String[]> tuples = new ArrayList<>();
+            while (input.next()) {
+                tuples.add(input.values().clone());
+            }
+            String[][] result = tuples.toArray(new String[tuples.size()][]);
+            tuples = null;
+            Arrays.sort(result, TupleStream::compare);
+            int n;
+            n = 0;
+            for (String[] values : result) {
+                if (n == 0 || compare(result[n - 1], values) != 0) {
+                    result[n] = values;
+                    n += 1;
+                }
+            }
+            return Arrays.copyOf(result, n);
+        }
+
+        /** The source of my tuples. */
+        private final TupleStream _input;
+        /** The sorted tuples, once collected.  Each is discarded once
+         *  produced. */
+        private String[][] _tuples;
+        /** The position in _tuples of my next tuple. */
+        private int _next;
+        /** The current tuple. */
+        private String[] _current;
+    }
+
+    /** The first tuples, in order, of the distinct tuples of another
+     *  TupleStream.  Only that many tuples are kept at any time (in a
+     *  TreeSet from which the greatest is removed whenever there are too
+     *  many), so that the space and the comparisons needed are
+     *  proportional to the number of tuples wanted rather than to the
+     *  size of the input. */
+    static class TopN extends TupleStream {
+        /** The first N distinct tuples of INPUT, in order. */
+        TopN(TupleStream input, int n) {
+            _input = input;
+            _n = n;
+        }
+
+        @Override
+        boolean next() {
+            if (_tuples == null) {
+                _tuples = top(_input, _n).iterator();
+            }
+            if (!_tuples.hasNext()) {
+                return false;
+            }
+            _current = _tuples.next();
+            return true;
+        }
+
+        @Override
+        String[] values() {
+            return _current;
+        }
+
+        /** Return the first N distinct tuples of INPUT. */
+        private static TreeSet<String[]> top(TupleStream input, int n) {
+            TreeSet<String[]> result = new TreeSet<>(TupleStream::compare);
+            if (n == 0) {
+                return result;
+            }
+            while (input.next()) {
+                String[] values = input.values();
+                if (result.size() == n && compare(values, result.last()) >= 0) {
+                    continue;
+                }
+                if (result.add(values.clone()) && result.size() > n) {
+                    result.pollLast();
+                }
+            }
+            return result;
+        }
+
+        /** The source of my tuples. */
+        private final TupleStream _input;
+        /** The number of tuples wanted. */
+        private final int _n;
+        /** The tuples remaining, once collected. */
+        private Iterator<String[]> _tuples;
+        /** The current tuple. */
+        private String[] _current;
+    }
+
+    /** At most a given number of the tuples of another TupleStream,
+     *  after skipping a given number.  Stops pulling from its input once
+     *  it has produced all it will. */
+    static class Limit extends TupleStream {
+        /** The first COUNT tuples of INPUT after the first OFFSET. */
+        Limit(TupleStream input, int offset, int count) {
+            _input = input;
+            _offset = offset;
+            _count = count;
+        }
+
+        @Override
+        boolean next() {
+            while (_offset > 0) {
+                if (!_input.next()) {
+                    return false;
+                }
+                _offset -= 1;
+            }
+            if (_count == 0 || !_input.next()) {
+                return false;
+            }
+            _count -= 1;
+            return true;
+        }
+
+        @Override
+        String[] values() {
+            return _input.values();
+        }
+
+        /** The source of my tuples. */
+        private final TupleStream _input;
+        /** The number of tuples still to skip. */
+        private int _offset;
+        /** The number of tuples still to produce. */
+        private int _count;
+    }
+}
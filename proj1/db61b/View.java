@@ -0,0 +1,123 @@
+package db61b;
+
+import java.util.List;
+import java.util.Scanner;
+
+/** A materialized view: a table, stored in a Database like any other,
+ *  that holds the result of a select clause and is kept up to date as
+ *  rows are added to the tables the clause selects from.
+ *
+ *  For each of those tables, a View records the Table it last saw under
+ *  the table's name and how many rows that Table had.  Rows added to a
+ *  Table are numbered after all its existing ones, so the view is
+ *  brought up to date by evaluating the select only over the new rows
+ *  (or, for a join, over the pairs of rows that include a new row) and
+ *  adding the result to the view's table (see Query.selectSince).  When
+ *  a name designates a different Table than before (the table has been
+ *  created or loaded again, or spilled and read back: see Database), the
+ *  select is instead evaluated again in full.  The select clause is kept
+ *  as text and parsed anew for each refresh, so that it applies to the
+ *  tables that have its tables' names at the time.
+ *  @author
+ */
+class View {
+
+    /** A view named NAME whose contents are the result of QUERY, which
+     *  must not be limited.  QUERY's tables must be locked (see
+     *  Query.lock) until the view's initial contents have been computed
+     *  from them. */
+    View(String name, Query query) {
+        _name = name;
+        _definition = query.toString();
+        _tableNames = query.tableNames();
+        _serials = new long[_tableNames.size()];
+        _sizes = new int[_tableNames.size()];
+        record(query.tables());
+    }
+
+    /** Return my name. */
+    String name() {
+        return _name;
+    }
+
+    /** Return the text of the select clause defining me. */
+    String definition() {
+        return _definition;
+    }
+
+    /** Return true iff I select from the table named NAME. */
+    boolean uses(String name) {
+        return _tableNames.contains(name);
+    }
+
+    /** Bring my table in DATABASE up to date with the tables it selects
+     *  from, returning true iff it may have changed. */
+    synchronized boolean refresh(Database database) {
+        Query query =
+            new CommandInterpreter(new Scanner(_definition), null, database)
+            .selectQuery();
+        Table[] tables = query.tables();
+        Table result;
+        boolean full;
+        query.lock();
+        try {
+            full = false;
+            boolean changed = false;
+            for (int i = 0; i < tables.length; i += 1) {
+                full |= tables[i].serial() != _serials[i];
+                changed |= tables[i].size() != _sizes[i];
+            }
+            if (!full && !changed) {
+                return false;
+            }
+            result = full ? query.select() : query.selectSince(_sizes);
+            record(tables);
+        } finally {
+            query.unlock();
+        }
+
+        if (full) {
+            database.putView(this, result);
+            return true;
+        }
+        Table table = database.getForWriting(_name);
+        if (table == null) {
+            return false;
+        }
+        boolean changed = false;
+        try {
+            String[] values = new String[result.columns()];
+            for (int r = 0; r < result.size(); r += 1) {
+                for (int c = 0; c < values.length; c += 1) {
+                    values[c] = result.get(r, c);
+                }
+                changed |= table.add(values);
+            }
+        } finally {
+            table.writeUnlock();
+        }
+        return changed;
+    }
+
+    /** Record the identities and sizes of TABLES, which are the tables
+     *  my contents now reflect. */
+    private void record(Table[] tables) {
+        for (int i = 0; i < tables.length; i += 1) {
+            _serials[i] = tables[i].serial();
+            _sizes[i] = tables[i].size();
+        }
+    }
+
+    /** My name. */
+    private final String _name;
+    /** The text of the select clause defining me. */
+    private final String _definition;
+    /** The names of the tables I select from. */
+    private final List<String> _tableNames;
+    /** The serial numbers (see Table.serial) of the Tables, with the
+     *  names in _tableNames, that my contents reflect. */
+    private final long[] _serials;
+    /** The number of rows of each of those Tables that my contents
+     *  reflect. */
+    private final int[] _sizes;
+}
@@ -0,0 +1,726 @@
+package db61b;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import static db61b.Utils.*;
+
+/** A write-ahead log that makes the changes to a Database durable
+ *  without rewriting whole tables.  The log lives in a directory of its
+ *  own, which holds:
+ *      a manifest, naming a generation G, a binary snapshot (see
+ *          Table.writeBinary) of each table as of the checkpoint that
+ *          began generation G, and the definitions of the views;
+ *      the snapshot files;
+ *      log files log-G, log-(G+1), ..., recording the changes made
+ *          since generation G began, in order.
+ *  Each change (the creation, loading, or replacement of a table, the
+ *  creation of a view or an index, and the rows added by an insert) is
+ *  appended to the current log file as a record: its length, its
+ *  contents, and a CRC-32 of its contents.  Records that are incomplete
+ *  or corrupt (as the last may be after a crash) end the log.
+ *
+ *  Records are collected in memory and written and forced to disk in
+ *  groups (group commit): every so often, or as each is appended if the
+ *  interval is 0.  A statement that makes a change waits (see await)
+ *  until its record is on disk, so that a statement that has finished
+ *  is never lost, while concurrent sessions share the cost of each
+ *  force.
+ *
+ *  Periodically, a checkpoint begins a new generation, writes a
+ *  snapshot of every table, installs a new manifest (atomically, by
+ *  renaming it into place), and deletes the files of the older
+ *  generations.  Changes made while the snapshots are written are
+ *  recorded in the new generation's log, and since replaying a record
+ *  whose effect is already present in a snapshot does not change it
+ *  (tables are sets of rows, and the other records replace what they
+ *  describe), recovery from the snapshots and the log is correct
+ *  whenever during the checkpoint the snapshots were taken.
+ *
+ *  What must never happen is that a change's record falls in the old
+ *  generation while the change is missing from the new snapshots.  Two
+ *  rules prevent it, one for each kind of change:
+ *      Changes that replace what a name designates (the TABLE, LOAD,
+ *          and VIEW records, made by Database.put, load, and putView)
+ *          are recorded first and made second, within beginChange and
+ *          endChange, so that no generation begins between the two.
+ *      Changes to the contents of a table (the ROWS and INDEX records,
+ *          made by inserts and create index) are made first and
+ *          recorded second, both while the table is locked for writing
+ *          (see Database.logRows).  A checkpoint takes the table's read
+ *          lock to snapshot it, after beginning its generation, so
+ *          either the record is in the new generation, or the change
+ *          was made before the snapshot was taken.
+ *  For the second kind, it is the table's lock, not beginChange, that
+ *  orders the change against the snapshot: if either the change or its
+ *  record were made outside the lock, the snapshot could fall between
+ *  them.
+ *
+ *  The contents of views are not logged: they are computed again from
+ *  their definitions on recovery (see View).
+ *  @author
+ */
+class WriteAheadLog implements Closeable {
+
+    /** Restore into DATABASE, which must contain no tables, the tables
+     *  recorded in the log in directory DIR (created if necessary), and
+     *  return a log, attached to DATABASE (see Database.setLog), that
+     *  records further changes in DIR.  The log forces records to disk
+     *  every SYNCINTERVAL milliseconds, or as each is appended if it is
+     *  0, and takes a checkpoint every CHECKPOINTINTERVAL milliseconds,
+     *  or never if it is 0. */
+    static WriteAheadLog open(Path dir, Database database, long syncInterval,
+                              long checkpointInterval) throws IOException {
+        Files.createDirectories(dir);
+        WriteAheadLog log = new WriteAheadLog(dir, database, syncInterval);
+        log.recover();
+        database.setLog(log);
+        if (syncInterval > 0) {
+            log._timer.scheduleWithFixedDelay(log::syncQuietly, syncInterval,
+                                              syncInterval,
+                                              TimeUnit.MILLISECONDS);
+        }
+        if (checkpointInterval > 0) {
+            log._timer.scheduleWithFixedDelay(log::periodicCheckpoint,
+                                              checkpointInterval,
+                                              checkpointInterval,
+                                              TimeUnit.MILLISECONDS);
+        }
+        return log;
+    }
+
+    /** A log in DIR for DATABASE, forcing records to disk every
+     *  SYNCINTERVAL milliseconds (see open). */
+    private WriteAheadLog(Path dir, Database database, long syncInterval) {
+        _dir = dir;
+        _database = database;
+        _syncInterval = syncInterval;
+        _pending = new ByteArrayOutputStream();
+        _timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "db61b-log");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Append a record that the table named NAME has been set to
+     *  TABLE, which must not change until this returns, and return a
+     *  ticket for await. */
+    long logTable(String name, Table table) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+        try {
+            record.writeByte(TABLE);
+            writeString(record, name);
+            record.writeInt(table.columns());
+            for (int c = 0; c < table.columns(); c += 1) {
+                writeString(record, table.getTitle(c));
+            }
+            writeRows(record, table.size(), table.columns(),
+                      (r, c) -> table.get(r, c));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return append(bytes.toByteArray());
+    }
+
+    /** Append a record that ROWS have been added to the table named
+     *  NAME, and return a ticket for await. */
+    long logRows(String name, List<String[]> rows) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+        try {
+            record.writeByte(ROWS);
+            writeString(record, name);
+            writeRows(record, rows.size(), rows.get(0).length,
+                      (r, c) -> rows.get(r)[c]);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return append(bytes.toByteArray());
+    }
+
+    /** Append a record that the table named NAME has been loaded from
+     *  NAME.db (see Database.load), and return a ticket for await. */
+    long logLoad(String name) {
+        return append(LOAD, name);
+    }
+
+    /** Append a record that NAME has been defined as a view of the
+     *  select clause DEFINITION, and return a ticket for await. */
+    long logView(String name, String definition) {
+        return append(VIEW, name, definition);
+    }
+
+    /** Begin a change to my database that replaces what a name
+     *  designates, and that is to be recorded in me.  (Changes to the
+     *  contents of a table rely on the table's lock instead: see the
+     *  class comment.)  Until the matching call to endChange, which must
+     *  follow once the change has been both recorded and made, no
+     *  checkpoint begins a new generation.  So a checkpoint either began
+     *  its generation before the record was appended, and replays it,
+     *  or after the change was made, and includes it in its snapshots. */
+    void beginChange() {
+        _gate.readLock().lock();
+    }
+
+    /** End a change begun by beginChange. */
+    void endChange() {
+        _gate.readLock().unlock();
+    }
+
+    /** Append a record that an index has been created on column COLUMN
+     *  of the table named NAME, and return a ticket for await. */
+    long logIndex(String name, String column) {
+        return append(INDEX, name, column);
+    }
+
+    /** Wait until the record whose ticket is TICKET (as returned when it
+     *  was appended) is on disk.  A TICKET of 0 denotes no record. */
+    void await(long ticket) {
+        if (_syncInterval == 0) {
+            if (_synced < ticket) {
+                sync();
+            }
+            return;
+        }
+        synchronized (this) {
+            while (_synced < ticket && _failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw error("interrupted while writing the log");
+                }
+            }
+        }
+        if (_synced < ticket) {
+            throw error("could not write the log: %s",
+                        _failure.getMessage());
+        }
+    }
+
+    /** Write all records appended so far to the current log file and
+     *  force them to disk, and wake the threads waiting for them.  When
+     *  several threads sync at once, the first writes the records of
+     *  all. */
+    void sync() {
+        synchronized (_fileLock) {
+            byte[] bytes;
+            long appended;
+            synchronized (this) {
+                if (_failure != null) {
+                    throw error("could not write the log: %s",
+                                _failure.getMessage());
+                }
+                bytes = _pending.toByteArray();
+                _pending.reset();
+                appended = _appended;
+            }
+            try {
+                if (bytes.length > 0) {
+                    ByteBuffer data = ByteBuffer.wrap(bytes);
+                    while (data.hasRemaining()) {
+                        _file.write(data);
+                    }
+                    _file.force(false);
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    _failure = e;
+                    notifyAll();
+                }
+                throw error("could not write the log: %s", e.getMessage());
+            }
+            synchronized (this) {
+                _synced = appended;
+                notifyAll();
+            }
+        }
+    }
+
+    /** Take a checkpoint: begin a new generation of the log, write a
+     *  snapshot of every table that is not a view, install a manifest
+     *  naming the new generation, the snapshots, and the definitions of
+     *  the views, and delete the files no longer needed. */
+    void checkpoint() throws IOException {
+        synchronized (_checkpointLock) {
+            checkpoint0();
+        }
+    }
+
+    /** Take a checkpoint, as for checkpoint, while holding
+     *  _checkpointLock. */
+    private void checkpoint0() throws IOException {
+        int generation;
+        _gate.writeLock().lock();
+        try {
+            synchronized (_fileLock) {
+                sync();
+                _file.close();
+                _generation += 1;
+                generation = _generation;
+                _file = FileChannel.open(logFile(generation),
+                                         StandardOpenOption.CREATE,
+                                         StandardOpenOption.TRUNCATE_EXISTING,
+                                         StandardOpenOption.WRITE);
+            }
+        } finally {
+            _gate.writeLock().unlock();
+        }
+
+        ArrayList<String> names = new ArrayList<>();
+        ArrayList<String> files = new ArrayList<>();
+        for (String name : _database.names()) {
+            if (_database.isView(name)) {
+                continue;
+            }
+            Table table = _database.get(name);
+            if (table == null) {
+                continue;
+            }
+            String file = generation + "-" + name + SNAPSHOT_SUFFIX;
+            table.readLock();
+            try {
+                table.writeBinary(_dir.resolve(file));
+            } finally {
+                table.readUnlock();
+            }
+            force(_dir.resolve(file));
+            names.add(name);
+            files.add(file);
+        }
+        List<View> views = _database.views();
+
+        Path manifest = _dir.resolve(MANIFEST);
+        Path newManifest = _dir.resolve(MANIFEST + ".new");
+        try (DataOutputStream output =
+             new DataOutputStream(Files.newOutputStream(newManifest))) {
+            output.writeInt(MANIFEST_MAGIC);
+            output.writeInt(generation);
+            output.writeInt(names.size());
+            for (int i = 0; i < names.size(); i += 1) {
+                writeString(output, names.get(i));
+                writeString(output, files.get(i));
+            }
+            output.writeInt(views.size());
+            for (View view : views) {
+                writeString(output, view.name());
+                writeString(output, view.definition());
+            }
+        }
+        force(newManifest);
+        Files.move(newManifest, manifest, StandardCopyOption.ATOMIC_MOVE,
+                   StandardCopyOption.REPLACE_EXISTING);
+        force(_dir);
+
+        try (DirectoryStream<Path> old = Files.newDirectoryStream(_dir)) {
+            for (Path file : old) {
+                String name = file.getFileName().toString();
+                if ((name.endsWith(SNAPSHOT_SUFFIX) && !files.contains(name))
+                    || (name.startsWith(LOG_PREFIX)
+                        && logGeneration(name) < generation)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    /** Stop logging, after writing out all records and taking a final
+     *  checkpoint. */
+    @Override
+    public void close() throws IOException {
+        _timer.shutdown();
+        try {
+            _timer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        _database.setLog(null);
+        checkpoint();
+        synchronized (_fileLock) {
+            _file.close();
+        }
+    }
+
+    /** Read the manifest and the logs in my directory, if any, into my
+     *  database, and open the last log file for appending. */
+    private void recover() throws IOException {
+        Path manifest = _dir.resolve(MANIFEST);
+        int generation = 0;
+        if (Files.exists(manifest)) {
+            generation = readManifest(manifest);
+        }
+        long end = 0;
+        while (Files.exists(logFile(generation))) {
+            end = replay(logFile(generation));
+            if (!Files.exists(logFile(generation + 1))) {
+                break;
+            }
+            generation += 1;
+        }
+        _generation = generation;
+        _file = FileChannel.open(logFile(generation),
+                                 StandardOpenOption.CREATE,
+                                 StandardOpenOption.WRITE);
+        _file.truncate(end);
+        _file.position(end);
+    }
+
+    /** Restore the tables and views in the manifest MANIFEST, and return
+     *  the generation it names. */
+    private int readManifest(Path manifest) throws IOException {
+        try (DataInputStream input =
+             new DataInputStream(Files.newInputStream(manifest))) {
+            if (input.readInt() != MANIFEST_MAGIC) {
+                throw error("corrupt log manifest");
+            }
+            int generation = input.readInt();
+            int tables = input.readInt();
+            for (int i = 0; i < tables; i += 1) {
+                String name = readString(input);
+                Path file = _dir.resolve(readString(input));
+                _database.put(name, Table.readTable(file));
+            }
+            int views = input.readInt();
+            for (int i = 0; i < views; i += 1) {
+                String name = readString(input);
+                defineView(name, readString(input));
+            }
+            return generation;
+        } catch (EOFException e) {
+            throw error("corrupt log manifest");
+        }
+    }
+
+    /** Apply the complete records in the log file FILE to my database,
+     *  and return the position in FILE just after the last of them. */
+    private long replay(Path file) throws IOException {
+        long end = 0;
+        try (DataInputStream input =
+             new DataInputStream(new BufferedInputStream(
+                 Files.newInputStream(file)))) {
+            while (true) {
+                byte[] record;
+                try {
+                    int length = input.readInt();
+                    if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                        break;
+                    }
+                    record = new byte[length];
+                    input.readFully(record);
+                    if (input.readInt() != checksum(record)) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                apply(record);
+                end += record.length + 8;
+            }
+        }
+        return end;
+    }
+
+    /** Apply the change described by RECORD to my database.  Changes
+     *  that fail now as they did when they were made (for example,
+     *  loading a file that has since disappeared) are ignored. */
+    private void apply(byte[] record) throws IOException {
+        DataInputStream input =
+            new DataInputStream(new ByteArrayInputStream(record));
+        int type = input.readByte();
+        String name = readString(input);
+        try {
+            switch (type) {
+            case TABLE: {
+                String[] titles = new String[input.readInt()];
+                for (int c = 0; c < titles.length; c += 1) {
+                    titles[c] = readString(input);
+                }
+                Table table = new Table(titles);
+                for (String[] row : readRows(input)) {
+                    table.add(row);
+                }
+                _database.put(name, table);
+                break;
+            }
+            case ROWS: {
+                List<String[]> rows = readRows(input);
+                Table table = _database.getForWriting(name);
+                if (table == null) {
+                    break;
+                }
+                try {
+                    for (String[] row : rows) {
+                        table.add(row);
+                    }
+                } finally {
+                    table.writeUnlock();
+                }
+                _database.refreshViews(name);
+                break;
+            }
+            case LOAD:
+                _database.load(name);
+                break;
+            case VIEW:
+                defineView(name, readString(input));
+                break;
+            case INDEX: {
+                String column = readString(input);
+                Table table = _database.getForWriting(name);
+                if (table == null) {
+                    break;
+                }
+                try {
+                    table.createIndex(column);
+                } finally {
+                    table.writeUnlock();
+                }
+                break;
+            }
+            default:
+                throw error("corrupt log record");
+            }
+        } catch (DBException e) {
+            /* Ignore DBException */
+        }
+    }
+
+    /** Define NAME in my database as a view of the select clause
+     *  DEFINITION. */
+    private void defineView(String name, String definition) {
+        String statement = "create view " + name + " as " + definition + ";";
+        new CommandInterpreter(new Scanner(statement), null, _database)
+            .statement();
+    }
+
+    /** Append a record consisting of TYPE followed by the strings
+     *  FIELDS, and return its ticket. */
+    private long append(int type, String... fields) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+        try {
+            record.writeByte(type);
+            for (String field : fields) {
+                writeString(record, field);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return append(bytes.toByteArray());
+    }
+
+    /** Append the record RECORD, and return its ticket. */
+    private long append(byte[] record) {
+        long ticket;
+        synchronized (this) {
+            DataOutputStream output = new DataOutputStream(_pending);
+            try {
+                output.writeInt(record.length);
+                output.write(record);
+                output.writeInt(checksum(record));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            _appended += 1;
+            ticket = _appended;
+        }
+        return ticket;
+    }
+
+    /** Sync, as a periodic task, ignoring failures (which are reported
+     *  to the threads waiting for records; see await). */
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (DBException e) {
+            /* Ignore DBException */
+        }
+    }
+
+    /** Take a checkpoint, as a periodic task.  If it fails, the previous
+     *  manifest and the logs since remain in place, so nothing is lost,
+     *  and the next checkpoint tries again.  Meanwhile, the failure is
+     *  reported on the standard error and by checkpointFailure, since
+     *  the log grows until a checkpoint succeeds. */
+    private void periodicCheckpoint() {
+        try {
+            checkpoint();
+            _checkpointFailure = null;
+        } catch (IOException | DBException e) {
+            _checkpointFailure = e;
+            System.err.printf("Error: could not take a checkpoint of the log"
+                              + " in %s: %s%n", _dir, e.getMessage());
+        }
+    }
+
+    /** Return the error that made the last periodic checkpoint fail, or
+     *  null if it succeeded or none has been taken. */
+    Exception checkpointFailure() {
+        return _checkpointFailure;
+    }
+
+    /** Return the log file for GENERATION. */
+    private Path logFile(int generation) {
+        return _dir.resolve(LOG_PREFIX + generation);
+    }
+
+    /** Return the generation of the log file named NAME. */
+    private static int logGeneration(String name) {
+        try {
+            return Integer.parseInt(name.substring(LOG_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    /** Force the contents of FILE (which may be a directory) to disk, as
+     *  far as the platform allows. */
+    private static void force(Path file) {
+        try (FileChannel channel = FileChannel.open(file,
+                                                    StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            /* Directories cannot be forced on some platforms. */
+        }
+    }
+
+    /** Return the CRC-32 of RECORD. */
+    private static int checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    /** The values of a cell of a sequence of rows. */
+    private interface Cells {
+        /** Return the value in column C of row R. */
+        String get(int r, int c);
+    }
+
+    /** Write to OUTPUT the number of rows ROWS, the number of columns
+     *  COLUMNS, and the values of those rows and columns in CELLS, row by
+     *  row. */
+    private static void writeRows(DataOutputStream output, int rows,
+                                  int columns, Cells cells)
+        throws IOException {
+        output.writeInt(rows);
+        output.writeInt(columns);
+        for (int r = 0; r < rows; r += 1) {
+            for (int c = 0; c < columns; c += 1) {
+                writeString(output, cells.get(r, c));
+            }
+        }
+    }
+
+    /** Read and return rows written by writeRows from INPUT. */
+    private static List<String[]> readRows(DataInputStream input)
+        throws IOException {
+        int rows = input.readInt();
+        int columns = input.readInt();
+        ArrayList<String[]> result = new ArrayList<>(rows);
+        for (int r = 0; r < rows; r += 1) {
+            String[] row = new String[columns];
+            for (int c = 0; c < columns; c += 1) {
+                row[c] = readString(input);
+            }
+            result.add(row);
+        }
+        return result;
+    }
+
+    /** Write S to OUTPUT as its length in bytes followed by its UTF-8
+     *  encoding. */
+    private static void writeString(DataOutputStream output, String s)
+        throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    /** Read and return a string written by writeString from INPUT. */
+    private static String readString(DataInputStream input)
+        throws IOException {
+        int length = input.readInt();
+        if (length < 0 || length > MAX_RECORD_LENGTH) {
+            throw error("corrupt log record");
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Record types: a table set to given contents, rows added to a
+     *  table, a table loaded from a .db file, a view defined, and an
+     *  index created. */
+    private static final int TABLE = 1, ROWS = 2, LOAD = 3, VIEW = 4,
+        INDEX = 5;
+
+    /** The name of the manifest in a log directory. */
+    private static final String MANIFEST = "manifest";
+    /** The first word of a manifest. */
+    private static final int MANIFEST_MAGIC = 0x64623631;
+    /** The start of the names of log files, which end in their
+     *  generation. */
+    private static final String LOG_PREFIX = "log-";
+    /** The end of the names of snapshot files. */
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    /** The length of the longest valid record, in bytes. */
+    private static final int MAX_RECORD_LENGTH = Integer.MAX_VALUE - 8;
+
+    /** The directory holding my files. */
+    private final Path _dir;
+    /** The database whose changes I record. */
+    private final Database _database;
+    /** Milliseconds between forces of the log to disk, or 0 if each
+     *  record is forced as it is awaited. */
+    private final long _syncInterval;
+    /** Runs the periodic syncs and checkpoints. */
+    private final ScheduledExecutorService _timer;
+    /** Held while taking a checkpoint. */
+    private final Object _checkpointLock = new Object();
+    /** Held shared by changes being recorded and made (see
+     *  beginChange), and exclusively while beginning a generation. */
+    private final ReentrantReadWriteLock _gate =
+        new ReentrantReadWriteLock();
+    /** Held while writing to, forcing, or replacing _file. */
+    private final Object _fileLock = new Object();
+    /** The current log file. */
+    private FileChannel _file;
+    /** The generation of _file. */
+    private int _generation;
+    /** Records appended but not yet written to _file, framed. */
+    private final ByteArrayOutputStream _pending;
+    /** The ticket of the last record appended. */
+    private long _appended;
+    /** The ticket of the last record forced to disk. */
+    private volatile long _synced;
+    /** The error that stopped the log from being written, if any. */
+    private volatile IOException _failure;
+    /** The error that made the last periodic checkpoint fail, if it
+     *  did. */
+    private volatile Exception _checkpointFailure;
+}
@@ -2,6 +2,21 @@ package db61b;
 import static org.junit.Assert.*;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+
 public class testTable {
     @Test
     public void TestAdd() {
@@ -18,6 +33,681 @@ public class testTable {
         companyInfo.print();
     }
 
+    @Test
+    public void TestAddHashCollision() {
+        String[] colTitles = {"A", "B"};
+        Table table = new Table(colTitles);
+        /* "Aa" and "BB" have the same String hash code. */
+        assertTrue(table.add(new String[] {"Aa", "x"}));
+        assertTrue(table.add(new String[] {"BB", "x"}));
+        assertFalse(table.add(new String[] {"BB", "x"}));
+        assertFalse(table.add(new String[] {"Aa", "x"}));
+        assertEquals(2, table.size());
+    }
+
+    @Test
+    public void TestBulkAdd() {
+        String[] colTitles = {"A", "B"};
+        Table table = new Table(colTitles);
+        table.bulkAdd(new String[] {"c", "1"});
+        table.bulkAdd(new String[] {"a", "2"});
+        table.bulkAdd(new String[] {"c", "1"});
+        table.bulkAdd(new String[] {"b", "0"});
+        table.bulkAdd(new String[] {"a", "2"});
+        table.endBulkAdd();
+        assertEquals(3, table.size());
+        assertEquals("a", table.get(0, 0));
+        assertEquals("b", table.get(1, 0));
+        assertEquals("c", table.get(2, 0));
+        assertFalse(table.add(new String[] {"b", "0"}));
+        assertTrue(table.add(new String[] {"b", "1"}));
+    }
+
+    @Test
+    public void TestIndexedSelect() {
+        String[] colTitles = {"SID", "Year"};
+        Table plain = new Table(colTitles);
+        Table indexed = new Table(colTitles);
+        indexed.createIndex("Year");
+        for (int i = 0; i < 50; i += 1) {
+            String[] row = {Integer.toString(100 + i),
+                            Integer.toString(2000 + i % 7)};
+            plain.add(row);
+            indexed.add(row);
+        }
+        String[][] tests = {{"=", "2003"}, {">=", "2004"}, {"<", "2002"},
+                            {"<=", "2001"}, {">", "2005"}, {"!=", "2000"}};
+        List<String> cols = Arrays.asList("SID");
+        for (String[] test : tests) {
+            Condition c1 = new Condition(new Column("Year", plain),
+                                         test[0], test[1]);
+            Condition c2 = new Condition(new Column("Year", indexed),
+                                         test[0], test[1]);
+            Table r1 = plain.select(cols, Arrays.asList(c1));
+            Table r2 = indexed.select(cols, Arrays.asList(c2));
+            assertEquals(r1.size(), r2.size());
+            for (int r = 0; r < r2.size(); r += 1) {
+                assertFalse(r1.add(new String[] {r2.get(r, 0)}));
+            }
+        }
+    }
+
+    @Test
+    public void TestHashJoin() {
+        // K does not lead T2, so the join hashes on it.
+        Table t1 = keyedTable(new String[] {"K", "A"}, 0, 200, 1);
+        Table t2 = keyedTable(new String[] {"B", "K"}, 1, 300, 2);
+        List<String> cols = Arrays.asList("A", "K", "B");
+        assertSameRows(nestedLoopJoin(t1, t2, cols, "K"),
+                       t1.select(t2, cols, new ArrayList<>()));
+    }
+
+    @Test
+    public void TestMergeJoin() {
+        // K leads both tables, so the join merges their row indexes.
+        Table t1 = keyedTable(new String[] {"K", "A"}, 0, 200, 3);
+        Table t2 = keyedTable(new String[] {"K", "B"}, 0, 300, 4);
+        List<String> cols = Arrays.asList("K", "A", "B");
+        assertSameRows(nestedLoopJoin(t1, t2, cols, "K"),
+                       t1.select(t2, cols, new ArrayList<>()));
+        Condition c = new Condition(new Column("A", t1, t2), "<", "150");
+        assertSameRows(nestedLoopJoin(t1, t2, cols, "K", c),
+                       t1.select(t2, cols, Arrays.asList(c)));
+    }
+
+    @Test
+    public void TestConditionPushdown() {
+        Table t1 = keyedTable(new String[] {"K", "A"}, 0, 200, 5);
+        Table t2 = keyedTable(new String[] {"B", "K"}, 1, 300, 6);
+        Condition notK3 = new Condition(new Column("K", t1, t2), "!=", "k3");
+        Condition onT1 = new Condition(new Column("A", t1, t2), "<", "150");
+        Condition onT2 = new Condition(new Column("B", t1, t2), "!=", "7");
+        Condition across = new Condition(new Column("A", t1, t2), ">",
+                                          new Column("B", t1, t2));
+        Condition k3 = new Condition(new Column("K", t1, t2), "=", "k3");
+        assertEquals(Arrays.asList(k3, onT2),
+                     Condition.bySelectivity(Arrays.asList(onT2, k3)));
+
+        List<Condition> conditions = Arrays.asList(across, onT2, notK3, onT1);
+        List<String> cols = Arrays.asList("A", "K", "B");
+        Table expected = new Table(cols);
+        for (int r1 = 0; r1 < t1.size(); r1 += 1) {
+            for (int r2 = 0; r2 < t2.size(); r2 += 1) {
+                if (t1.get(r1, 0).equals(t2.get(r2, 1))
+                    && Condition.test(conditions, r1, r2)) {
+                    expected.add(new String[] {t1.get(r1, 1), t1.get(r1, 0),
+                                               t2.get(r2, 0)});
+                }
+            }
+        }
+        assertSameRows(expected, t1.select(t2, cols, conditions));
+    }
+
+    /** Return a table with the two columns TITLES and ROWS rows, whose
+     *  column number KEY holds one of ten keys, chosen at random from
+     *  SEED, and whose other column holds the row's number. */
+    private static Table keyedTable(String[] titles, int key, int rows,
+                                    long seed) {
+        Random random = new Random(seed);
+        Table table = new Table(titles);
+        for (int r = 0; r < rows; r += 1) {
+            String[] row = new String[2];
+            row[key] = "k" + random.nextInt(10);
+            row[1 - key] = Integer.toString(r);
+            table.add(row);
+        }
+        return table;
+    }
+
+    /** Return the join of T1 and T2, whose only common column is KEY,
+     *  on COLS, with CONDITIONS, as a nested loop computes it: a copy of
+     *  T2 in which KEY is renamed has no columns in common with T1, and
+     *  is joined with it on the condition that the two keys be equal.
+     *  CONDITIONS on T2 apply to the copy, whose rows are numbered as
+     *  T2's. */
+    private static Table nestedLoopJoin(Table t1, Table t2, List<String> cols,
+                                        String key,
+                                        Condition... conditions) {
+        String[] titles = new String[t2.columns()];
+        for (int c = 0; c < titles.length; c += 1) {
+            titles[c] = t2.getTitle(c).equals(key) ? key + "2"
+                : t2.getTitle(c);
+        }
+        Table copy = new Table(titles);
+        String[] row = new String[titles.length];
+        for (int r = 0; r < t2.size(); r += 1) {
+            for (int c = 0; c < row.length; c += 1) {
+                row[c] = t2.get(r, c);
+            }
+            copy.add(row);
+        }
+        ArrayList<Condition> all = new ArrayList<>(Arrays.asList(conditions));
+        all.add(new Condition(new Column(key, t1, copy), "=",
+                              new Column(key + "2", t1, copy)));
+        return t1.select(copy, cols, all);
+    }
+
+    /** Assert that tables EXPECTED and ACTUAL have the same rows. */
+    private static void assertSameRows(Table expected, Table actual) {
+        assertEquals(expected.size(), actual.size());
+        String[] row = new String[actual.columns()];
+        for (int r = 0; r < actual.size(); r += 1) {
+            for (int c = 0; c < row.length; c += 1) {
+                row[c] = actual.get(r, c);
+            }
+            assertTrue(expected.containsRow(row));
+        }
+    }
+
+    @Test
+    public void TestDictionaryCompare() {
+        Table table = new Table(new String[] {"Dept"});
+        table.add(new String[] {"Math"});
+        table.add(new String[] {"EECS"});
+        table.prepare();
+        table.add(new String[] {"Bio"});
+        table.add(new String[] {"Phys"});
+        Column dept = new Column("Dept", table);
+        Table.ValueList values = table.values(0);
+        assertEquals(4, values.distinct());
+        assertTrue(values.compare(0, 1) > 0);
+        assertTrue(values.compare(2, 1) < 0);
+        assertTrue(values.compare(3, 0) > 0);
+        List<String> cols = Arrays.asList("Dept");
+        assertEquals(2, table.select(cols, Arrays.asList(
+            new Condition(dept, "<", "Math"))).size());
+        assertEquals(1, table.select(cols, Arrays.asList(
+            new Condition(dept, "=", "Phys"))).size());
+        assertEquals(3, table.select(cols, Arrays.asList(
+            new Condition(dept, ">=", "Cat"))).size());
+    }
+
+    @Test
+    public void TestBinaryRoundTrip() throws IOException {
+        Table table = new Table(new String[] {"SID", "Grade"});
+        for (int i = 0; i < 300; i += 1) {
+            table.add(new String[] {Integer.toString(1000 - i),
+                                    "ABCDF".substring(i % 5, i % 5 + 1)});
+        }
+        Path file = Files.createTempFile("testTable", ".db");
+        try {
+            table.writeBinary(file);
+            Table copy = Table.readTable(file);
+            assertEquals(table.size(), copy.size());
+            assertEquals(2, copy.columns());
+            assertEquals("Grade", copy.getTitle(1));
+            for (int r = 0; r < table.size(); r += 1) {
+                assertFalse(copy.add(new String[] {table.get(r, 0),
+                                                   table.get(r, 1)}));
+            }
+            assertTrue(copy.add(new String[] {"1", "A"}));
+            Column grade = new Column("Grade", copy);
+            assertEquals(61, copy.select(Arrays.asList("SID"), Arrays.asList(
+                new Condition(grade, "=", "A"))).size());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void TestSpillKeepsIndexes() {
+        Database db = new Database(1);
+        Table table = new Table(new String[] {"SID", "Grade"});
+        for (int i = 0; i < 100; i += 1) {
+            table.add(new String[] {Integer.toString(i),
+                                    "ABCDF".substring(i % 5, i % 5 + 1)});
+        }
+        table.createIndex("Grade");
+        assertTrue(table.hasIndex(1));
+        db.put("t", table);
+        db.put("u", new Table(new String[] {"X"}));
+        Table reloaded = db.get("t");
+        assertNotSame(table, reloaded);
+        assertTrue(reloaded.hasIndex(1));
+        assertFalse(reloaded.hasIndex(0));
+        reloaded.add(new String[] {"100", "A"});
+        Column grade = new Column("Grade", reloaded);
+        assertEquals(21, reloaded.select(Arrays.asList("SID"), Arrays.asList(
+            new Condition(grade, "=", "A"))).size());
+    }
+
+    @Test
+    public void TestMemoryBudget() {
+        Database db = new Database();
+        try {
+            db.setMemoryBudget(-1);
+            fail("negative budget accepted");
+        } catch (DBException e) {
+            /* Expected */
+        }
+        try {
+            new Database(-5);
+            fail("negative budget accepted");
+        } catch (DBException e) {
+            /* Expected */
+        }
+        db.setMemoryBudget(0);
+    }
+
+    @Test
+    public void TestStream() {
+        Table table = new Table(new String[] {"SID", "Grade"});
+        Table names = new Table(new String[] {"SID", "Name"});
+        for (int i = 0; i < 200; i += 1) {
+            table.add(new String[] {Integer.toString(i % 50),
+                                    "ABCDF".substring(i % 5, i % 5 + 1)});
+            names.add(new String[] {Integer.toString(i % 70), "n" + i % 3});
+        }
+        List<Condition> none = Arrays.asList();
+        List<Condition> notA = Arrays.asList(
+            new Condition(new Column("Grade", table), "!=", "A"));
+        checkStream(table.select(Arrays.asList("SID"), notA),
+                    table.stream(Arrays.asList("SID"), notA, -1));
+        checkStream(table.select(Arrays.asList("Grade"), none),
+                    table.stream(Arrays.asList("Grade"), none, -1));
+        checkStream(table.select(names, Arrays.asList("Name", "Grade"), none),
+                    table.stream(names, Arrays.asList("Name", "Grade"),
+                                 none, -1));
+    }
+
+    /** Check that STREAM produces the rows of EXPECTED, in order. */
+    private static void checkStream(Table expected, TupleStream stream) {
+        String[] previous = null;
+        int n;
+        n = 0;
+        while (stream.next()) {
+            String[] values = stream.values();
+            if (previous != null) {
+                assertTrue(TupleStream.compare(previous, values) < 0);
+            }
+            assertFalse(expected.add(values));
+            previous = values.clone();
+            n += 1;
+        }
+        assertEquals(expected.size(), n);
+    }
+
+    @Test
+    public void TestLimit() {
+        Table table = new Table(new String[] {"SID", "Grade"});
+        for (int i = 0; i < 200; i += 1) {
+            table.add(new String[] {Integer.toString(i * 37 % 101),
+                                    "ABCDF".substring(i % 5, i % 5 + 1)});
+        }
+        List<Condition> none = Arrays.asList();
+        List<String> sid = Arrays.asList("SID");
+        List<String> grade = Arrays.asList("Grade", "SID");
+        List<String[]> sids = tuples(table.stream(sid, none, -1));
+        List<String[]> grades = tuples(table.stream(grade, none, -1));
+        for (int n : new int[] {0, 1, 7, 101, 500}) {
+            checkPrefix(sids, tuples(table.stream(sid, none, n)), 0, n);
+            checkPrefix(grades, tuples(table.stream(grade, none, n)), 0, n);
+            checkPrefix(grades,
+                        tuples(new TupleStream.Limit(
+                                   table.stream(grade, none, -1), 3, n)),
+                        3, n);
+        }
+    }
+
+    /** Return the tuples produced by STREAM. */
+    private static List<String[]> tuples(TupleStream stream) {
+        List<String[]> result = new ArrayList<>();
+        while (stream.next()) {
+            result.add(stream.values().clone());
+        }
+        return result;
+    }
+
+    /** Check that ACTUAL consists of the first N tuples of ALL after the
+     *  first OFFSET (or all of them, if there are fewer). */
+    private static void checkPrefix(List<String[]> all, List<String[]> actual,
+                                    int offset, int n) {
+        int end = Math.min(all.size(), offset + n);
+        assertEquals(end - offset, actual.size());
+        for (int i = offset; i < end; i += 1) {
+            assertArrayEquals(all.get(i), actual.get(i - offset));
+        }
+    }
+
+    @Test
+    public void TestCachedSelect() {
+        Database db = new Database();
+        Table t = new Table(new String[] {"A", "B"});
+        for (int i = 0; i < 20000; i += 1) {
+            t.add(new String[] {Integer.toString(i), i % 2 == 0 ? "x" : "y"});
+        }
+        db.put("t", t);
+        String select = "select A from t where B != 'y'";
+        Table first = select(db, select);
+        assertEquals(10000, first.size());
+        assertSame(first, select(db, select));
+        assertSame(first, select(db, "select A from t where  B != 'y'"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes, true, StandardCharsets.UTF_8);
+        run(db, "insert into t values ('20000', 'x');");
+        new CommandInterpreter(new Scanner(select + ";"), null, db, out)
+            .statement();
+        String printed = bytes.toString(StandardCharsets.UTF_8);
+        assertTrue(printed.contains("  20000 " + System.lineSeparator()));
+        Table second = select(db, select);
+        assertNotSame(first, second);
+        assertEquals(10001, second.size());
+
+        db.setMemoryBudget(1);
+        assertNotSame(second, select(db, select));
+    }
+
+    /** Return the result of the select clause SELECT on DB, as a session
+     *  of its own would compute it. */
+    private static Table select(Database db, String select) {
+        return new CommandInterpreter(new Scanner(select), null, db)
+            .selectClause();
+    }
+
+    @Test
+    public void TestConcurrentInserts() throws InterruptedException {
+        Database db = new Database(20000);
+        db.put("t", new Table(new String[] {"Thread", "N"}));
+        db.put("u", new Table(new String[] {"X"}));
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i += 1) {
+            String id = Integer.toString(i);
+            threads[i] = new Thread(() -> {
+                for (int n = 0; n < 300; n += 1) {
+                    Table t = db.getForWriting("t");
+                    try {
+                        t.add(new String[] {id, Integer.toString(n)});
+                    } finally {
+                        t.writeUnlock();
+                    }
+                    Table u = db.get("u");
+                    u.readLock();
+                    try {
+                        u.select(Arrays.asList("X"), Arrays.asList());
+                    } finally {
+                        u.readUnlock();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1200, db.get("t").size());
+    }
+
+    @Test
+    public void TestParallelFilter() {
+        Random random = new Random(7);
+        Table table = new Table(new String[] {"SID", "Grade"});
+        for (int i = 0; i < Table.PARALLEL_THRESHOLD + 1000; i += 1) {
+            int g = random.nextInt(5);
+            table.add(new String[] {Integer.toString(i),
+                                    "ABCDF".substring(g, g + 1)});
+        }
+        List<Condition> conditions =
+            Arrays.asList(new Condition(new Column("Grade", table), "<=", "B"),
+                          new Condition(new Column("SID", table), ">", "2"));
+        int[] rows = table.filter(conditions);
+        int n;
+        n = 0;
+        for (int r = 0; r < table.size(); r += 1) {
+            if (table.shouldAddRow(conditions, r)) {
+                assertEquals(r, rows[n]);
+                n += 1;
+            }
+        }
+        assertEquals(n, rows.length);
+    }
+
+    @Test
+    public void TestPartitionedJoin() {
+        Table t1 = keyedTable(new String[] {"K", "A"}, 0, 500, 8);
+        Table t2 = keyedTable(new String[] {"B", "K"}, 1, 700, 9);
+        t1.prepare();
+        t2.prepare();
+        int[] rows1 = t1.filter(Arrays.asList());
+        int[] rows2 = t2.filter(Arrays.asList());
+        Condition less = new Condition(new Column("A", t1, t2), "<",
+                                       new Column("B", t1, t2));
+        less.prepare();
+        List<Condition> conditions = Arrays.asList(less);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (boolean buildFirst : new boolean[] {true, false}) {
+                Table.ValueList[] buildValues =
+                    {buildFirst ? t1.values(0) : t2.values(1)};
+                Table.ValueList[] probeValues =
+                    {buildFirst ? t2.values(1) : t1.values(0)};
+                int[][] toBuildCodes =
+                    {probeValues[0].translate(buildValues[0])};
+                int[] buildRows = buildFirst ? rows1 : rows2;
+                int[] probeRows = buildFirst ? rows2 : rows1;
+                RowStream serial = new RowStream.Filter(
+                    new RowStream.HashJoin(buildValues, buildRows,
+                                           probeValues,
+                                           new RowStream.ArrayScan(probeRows),
+                                           toBuildCodes, buildFirst),
+                    conditions);
+                int[] parallel =
+                    new PartitionedJoin(buildValues, probeValues,
+                                        toBuildCodes, conditions, buildFirst,
+                                        pool).join(buildRows, probeRows);
+                long[] expected = pairs(serial);
+                assertTrue(expected.length > 0);
+                assertTrue(Arrays.equals(expected,
+                                         pairs(new RowStream.PairScan(
+                                                   parallel))));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Return the pairs of rows produced by PAIRS, each as a long, in
+     *  increasing order. */
+    private static long[] pairs(RowStream pairs) {
+        ArrayList<Long> result = new ArrayList<>();
+        while (pairs.next()) {
+            result.add(((long) pairs.row1() << 32) | pairs.row2());
+        }
+        long[] sorted = new long[result.size()];
+        for (int i = 0; i < sorted.length; i += 1) {
+            sorted[i] = result.get(i);
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    @Test
+    public void TestServer() throws IOException, InterruptedException {
+        Database db = new Database();
+        Table table = new Table(new String[] {"A"});
+        table.add(new String[] {"1"});
+        db.put("t", table);
+        Server server = new Server(0, db);
+        Thread serving = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                fail(e.getMessage());
+            }
+        });
+        serving.start();
+        try {
+            String inserted = converse(server.port(),
+                                       "insert into t values ('2');\nquit;\n");
+            assertTrue(inserted.startsWith("DB61B System."));
+            String selected = converse(server.port(),
+                                       "select A from t where A > '1';\n");
+            String nl = System.lineSeparator();
+            assertTrue(selected.contains("Search results:" + nl + "  2 " + nl));
+            assertFalse(selected.contains("  1 "));
+        } finally {
+            server.close();
+            serving.join();
+        }
+    }
+
+    @Test
+    public void TestView() {
+        Database db = new Database();
+        db.put("t", new Table(new String[] {"K", "A"}));
+        db.put("u", new Table(new String[] {"K", "B"}));
+        String joined = "select A, B from t, u where A < B and K > '2'";
+        String single = "select K from t where A != '4'";
+        run(db, "create view j as " + joined + ";");
+        run(db, "create view s as " + single + ";");
+        Random random = new Random(61);
+        for (int i = 0; i < 60; i += 1) {
+            run(db, String.format("insert into %s values ('%d', '%d');",
+                                  random.nextBoolean() ? "t" : "u",
+                                  random.nextInt(6), random.nextInt(8)));
+            checkView(db, "j", joined);
+            checkView(db, "s", single);
+        }
+        assertTrue(db.get("j").size() > 10);
+    }
+
+    @Test
+    public void TestWriteAheadLog() throws IOException {
+        Path dir = Files.createTempDirectory("db61b-log");
+        Database db = new Database();
+        WriteAheadLog.open(dir, db, 0, 0);
+        db.put("t", new Table(new String[] {"K", "A"}));
+        run(db, "insert into t values ('1', 'x'), ('2', 'y');");
+        run(db, "create index on t (A);");
+        run(db, "create view v as select K from t where A > 'x';");
+        run(db, "insert into t values ('3', 'z');");
+
+        Database recovered = new Database();
+        WriteAheadLog log = WriteAheadLog.open(dir, recovered, 0, 0);
+        assertEquals(3, recovered.get("t").size());
+        assertTrue(recovered.get("t").hasIndex(1));
+        assertFalse(recovered.get("t").hasIndex(0));
+        assertEquals(2, recovered.get("v").size());
+        run(recovered, "insert into t values ('4', 'w');");
+        log.checkpoint();
+        run(recovered, "insert into t values ('5', 'zz');");
+
+        Database restored = new Database();
+        WriteAheadLog log2 = WriteAheadLog.open(dir, restored, 0, 0);
+        assertEquals(5, restored.get("t").size());
+        assertTrue(restored.get("t").hasIndex(1));
+        assertTrue(restored.isView("v"));
+        assertEquals(3, restored.get("v").size());
+        log2.close();
+    }
+
+    @Test
+    public void TestCheckpointFailure()
+        throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("db61b-log");
+        for (int g = 1; g <= 1000; g += 1) {
+            Files.createDirectory(dir.resolve(g + "-t.snapshot"));
+        }
+        Database db = new Database();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        PrintStream err = System.err;
+        System.setErr(new PrintStream(errors, true, StandardCharsets.UTF_8));
+        try {
+            WriteAheadLog log = WriteAheadLog.open(dir, db, 0, 10);
+            db.put("t", new Table(new String[] {"A"}));
+            run(db, "insert into t values ('1'), ('2');");
+            for (int i = 0; i < 500 && log.checkpointFailure() == null;
+                 i += 1) {
+                Thread.sleep(10);
+            }
+            assertNotNull(log.checkpointFailure());
+            run(db, "insert into t values ('3');");
+            for (int g = 1; g <= 1000; g += 1) {
+                Files.deleteIfExists(dir.resolve(g + "-t.snapshot"));
+            }
+            for (int i = 0; i < 500 && log.checkpointFailure() != null;
+                 i += 1) {
+                Thread.sleep(10);
+            }
+            assertEquals(null, log.checkpointFailure());
+            log.close();
+        } finally {
+            System.setErr(err);
+        }
+        assertTrue(errors.toString(StandardCharsets.UTF_8)
+                   .contains("could not take a checkpoint"));
+
+        Database recovered = new Database();
+        WriteAheadLog.open(dir, recovered, 0, 0).close();
+        assertEquals(3, recovered.get("t").size());
+    }
+
+    @Test
+    public void TestCheckpointDuringPut()
+        throws IOException, InterruptedException {
+        Table table = new Table(new String[] {"A"});
+        for (int k = 0; k < 100; k += 1) {
+            table.add(new String[] {Integer.toString(k)});
+        }
+        for (int i = 0; i < 50; i += 1) {
+            Path dir = Files.createTempDirectory("db61b-log");
+            Database db = new Database();
+            WriteAheadLog log = WriteAheadLog.open(dir, db, 0, 0);
+            Thread checkpoint = new Thread(() -> {
+                try {
+                    log.checkpoint();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            checkpoint.start();
+            db.put("t", table);
+            checkpoint.join();
+
+            Database recovered = new Database();
+            WriteAheadLog.open(dir, recovered, 0, 0);
+            assertNotNull("lost in round " + i, recovered.get("t"));
+        }
+    }
+
+    /** Execute the statement COMMAND on DB. */
+    private static void run(Database db, String command) {
+        new CommandInterpreter(new Scanner(command), null, db)
+            .statement();
+    }
+
+    /** Check that the view NAME in DB has the same rows as the result
+     *  of evaluating the select clause DEFINITION afresh. */
+    private static void checkView(Database db, String name,
+                                  String definition) {
+        Table expected =
+            new CommandInterpreter(new Scanner(definition), null,
+                                   db).selectClause();
+        Table view = db.get(name);
+        assertEquals(expected.size(), view.size());
+        for (int r = 0; r < view.size(); r += 1) {
+            String[] values = new String[view.columns()];
+            for (int c = 0; c < values.length; c += 1) {
+                values[c] = view.get(r, c);
+            }
+            assertTrue(expected.containsRow(values));
+        }
+    }
+
+    /** Send COMMANDS to the server listening on PORT of the local host,
+     *  and return everything it sends back until it disconnects. */
+    private static String converse(int port, String commands)
+        throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+                                        port)) {
+            socket.getOutputStream().write(
+                commands.getBytes(StandardCharsets.UTF_8));
+            socket.shutdownOutput();
+            return new String(socket.getInputStream().readAllBytes(),
+                              StandardCharsets.UTF_8);
+        }
+    }
+
     @Test
     public void TestPrint() {
         String[] colTitles = {"Company Name", "Product Description", "Position Description"};
@@ -33,6 +723,23 @@ public class testTable {
         companyInfo.writeTable("CompanyInfo");
     }
 
+    @Test
+    public void TestPrintBuffered() {
+        Table table = new Table(new String[] {"SID", "Name"});
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 20000; i += 1) {
+            String sid = String.format("%06d", i);
+            table.add(new String[] {sid, "n" + i % 7});
+            expected.append("  ").append(sid).append(" n").append(i % 7)
+                .append(" ").append(System.lineSeparator());
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes, true, StandardCharsets.UTF_8);
+        table.print(out);
+        assertEquals(expected.toString(),
+                     new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+    }
+
     @Test
     public void TestRegex() {
         String input = "5.001";